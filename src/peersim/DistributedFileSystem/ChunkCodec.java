@@ -0,0 +1,138 @@
+package peersim.DistributedFileSystem;
+
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/*
+    Compresion por trozo. Cada trozo codificado lleva una cabecera de
+    5 bytes: formato (RAW o DEFLATE) + largo original (4), seguida de los
+    bytes del trozo tal cual o comprimidos con Deflate. Antes de comprimir
+    un trozo se comprimen sus primeros SAMPLE bytes con el nivel mas rapido:
+    si no bajan al menos a MAX_RATIO (audio mp3, imagenes, datos ya
+    comprimidos) el trozo se guarda tal cual, sin gastar CPU en el resto.
+    Tambien se guarda tal cual si comprimido no resulta mas corto.
+*/
+public class ChunkCodec {
+
+    public static final byte RAW = 0;
+    public static final byte DEFLATE = 1;
+    public static final int HEADER = 1 + 4;
+
+    private static final int SAMPLE = 4096;
+    private static final double MAX_RATIO = 0.9;
+
+    private static final Deflater sampler = new Deflater(Deflater.BEST_SPEED, true);
+    private static final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    private static final Inflater inflater = new Inflater(true);
+    private static byte[] scratch = new byte[SAMPLE];
+
+    //estadisticas
+    public static long chunks = 0;
+    public static long deflated = 0;
+    public static long rawBytes = 0;
+    public static long encodedBytes = 0;
+    public static long encodeNanos = 0;
+    public static long decodeNanos = 0;
+    public static long decoded = 0;
+
+    private ChunkCodec() {
+    }
+
+    /*
+        Codifica los bytes que quedan en data (sin cambiar su posicion)
+    */
+    public static ByteBuffer encode(ByteBuffer data) {
+        long start = System.nanoTime();
+        int length = data.remaining();
+        byte[] in;
+        int offset;
+        if (data.hasArray()) {
+            in = data.array();
+            offset = data.arrayOffset() + data.position();
+        } else {
+            in = new byte[length];
+            data.duplicate().get(in);
+            offset = 0;
+        }
+        byte[] out = new byte[HEADER + length];
+        int n = -1;
+        if (compressible(in, offset, length)) {
+            deflater.reset();
+            deflater.setInput(in, offset, length);
+            deflater.finish();
+            n = deflater.deflate(out, HEADER, length);
+            if (!deflater.finished()) {
+                n = -1;
+            }
+        }
+        ByteBuffer chunk = ByteBuffer.wrap(out);
+        if (n >= 0) {
+            chunk.put(DEFLATE).putInt(length);
+            chunk.limit(HEADER + n);
+            deflated++;
+        } else {
+            chunk.put(RAW).putInt(length);
+            chunk.put(in, offset, length);
+        }
+        chunk.position(0);
+        chunks++;
+        rawBytes += length;
+        encodedBytes += chunk.remaining();
+        encodeNanos += System.nanoTime() - start;
+        return chunk;
+    }
+
+    private static boolean compressible(byte[] in, int offset, int length) {
+        int n = Math.min(SAMPLE, length);
+        if (n == 0) {
+            return false;
+        }
+        sampler.reset();
+        sampler.setInput(in, offset, n);
+        sampler.finish();
+        int out = 0;
+        while (!sampler.finished() && out < n) {
+            out += sampler.deflate(scratch, 0, scratch.length);
+        }
+        return out < n * MAX_RATIO;
+    }
+
+    /*
+        Devuelve los bytes originales del trozo codificado
+    */
+    public static ByteBuffer decode(ByteBuffer chunk) {
+        long start = System.nanoTime();
+        ByteBuffer b = chunk.duplicate();
+        byte format = b.get();
+        int length = b.getInt();
+        byte[] out = new byte[length];
+        if (format == RAW) {
+            b.get(out);
+        } else {
+            byte[] in = new byte[b.remaining()];
+            b.get(in);
+            inflater.reset();
+            inflater.setInput(in);
+            try {
+                int n = 0;
+                while (n < length && !inflater.finished()) {
+                    int r = inflater.inflate(out, n, length - n);
+                    if (r == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        break;
+                    }
+                    n += r;
+                }
+                if (n != length) {
+                    throw new IllegalArgumentException("corrupt chunk: " + n + " of " + length + " bytes");
+                }
+            } catch (DataFormatException ex) {
+                throw new IllegalArgumentException("corrupt chunk", ex);
+            }
+        }
+        decoded++;
+        decodeNanos += System.nanoTime() - start;
+        return ByteBuffer.wrap(out);
+    }
+}
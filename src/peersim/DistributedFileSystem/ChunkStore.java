@@ -0,0 +1,36 @@
+package peersim.DistributedFileSystem;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import peersim.pastry.UInt128;
+
+/*
+    Almacenamiento de los trozos de los que es responsable un nodo.
+    Los trozos se guardan y se recuperan como bytes crudos (ByteBuffer),
+    sin pasar por String, asi un mp3 vuelve identico byte a byte.
+*/
+public interface ChunkStore {
+
+    /*
+        Guarda los bytes restantes de data (de position a limit) bajo la llave,
+        reemplazando lo que hubiera. No modifica la posicion de data.
+    */
+    public void put(UInt128 key, ByteBuffer data) throws IOException;
+
+    /*
+        Devuelve un buffer (position 0, limit = largo del trozo) con los bytes
+        guardados bajo la llave, o null si la llave no esta.
+    */
+    public ByteBuffer get(UInt128 key) throws IOException;
+
+    public boolean contains(UInt128 key);
+
+    /*número de trozos guardados*/
+    public int size();
+
+    /*bytes ocupados por los trozos guardados*/
+    public long bytes();
+
+    /*libera los recursos del almacenamiento*/
+    public void close() throws IOException;
+}
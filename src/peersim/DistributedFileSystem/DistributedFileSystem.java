@@ -2,23 +2,32 @@
 
 package peersim.DistributedFileSystem;
 
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
-import java.math.BigInteger;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
 import peersim.Traffic.Query;
 import peersim.config.Configuration;
 import peersim.core.CommonState;
-import peersim.core.Network;
 import peersim.core.Node;
 import peersim.edsim.EDProtocol;
+import peersim.edsim.EDSimulator;
+import peersim.pastry.KeyIndex;
+import peersim.pastry.MSPastryObserver;
 import peersim.pastry.MSPastryProtocol;
+import peersim.pastry.NodeRegistry;
+import peersim.pastry.UInt128;
 import peersim.utils.FileSplit;
 
 
@@ -35,7 +44,67 @@ public class DistributedFileSystem implements EDProtocol, Cloneable {
     private static final String PAR_PNORMAL = "nn";
     private static final String PAR_PPOWER = "pn";
     private static final String PAR_MDEB = "max_debit";
-    private static final String PAR_SIZE = "SIZE";
+    private static final String PAR_STORE = "store";
+    private static final String PAR_SEGMENT = "segment_size";
+    private static final String PAR_READ = "read";
+    private static final String PAR_MMAP_CACHE = "mmap_cache";
+    private static final String PAR_MMAP_WINDOW = "mmap_window";
+    private static final String PAR_SLAB = "slab_size";
+    private static final String PAR_SPLIT = "split";
+    private static final String PAR_CHUNKING = "chunking";
+    private static final String PAR_CDC_MIN = "cdc_min";
+    private static final String PAR_CDC_AVG = "cdc_avg";
+    private static final String PAR_CDC_MAX = "cdc_max";
+    private static final String PAR_COMPRESSION = "compression";
+    private static final String PAR_CODING = "coding";
+    private static final String PAR_RS_K = "rs_k";
+    private static final String PAR_RS_M = "rs_m";
+    private static final String PAR_CHECK = "check_window";
+    private static final String PAR_LC = "local_cache";
+    private static final String PAR_LC_SIZE = "lc_cache_size";
+    private static final String PAR_LC_POLICY = "lc_policy";
+    private static final String PAR_PC = "path_cache";
+    private static final String PAR_PC_SIZE = "pc_cache_size";
+    private static final String PAR_PC_TTL = "pc_ttl";
+    private static final String PAR_PC_POLICY = "pc_policy";
+    private static final String PAR_PC_THRESHOLD = "pc_threshold";
+    private static final String PAR_MAX_REQ = "max_requests";
+    private static final String PAR_REQ_TIMEOUT = "request_timeout";
+    private static final String PAR_RETRY_TIMEOUT = "retry_timeout";
+    private static final String PAR_MAX_RETRIES = "max_retries";
+
+    //tecnicas de replicacion (technique)
+    public static final int TECH_EN = 1;
+    public static final int TECH_LEAFSET = 2;
+    public static final int TECH_BUBBLE = 3;
+    public static final int TECH_NONE = 4;
+
+    //estadisticas de deduplicacion (de todos los nodos)
+    //bytes de los trozos insertados, contando los repetidos
+    public static long dedupLogicalBytes = 0;
+    //bytes guardados en los ChunkStores (cada trozo una vez)
+    public static long dedupStoredBytes = 0;
+    //bytes de trozos repetidos dentro de un archivo que no se enviaron
+    public static long dedupSkippedBytes = 0;
+    //bytes de trozos enviados en inserts y recibidos como resultados
+    public static long wireBytes = 0;
+    //bytes de los archivos particionados (sin codificar ni repetir)
+    public static long insertedBytes = 0;
+    //réplicas enviadas
+    public static long replicasSent = 0;
+    //tiempo de red ahorrado por los aciertos del cache local
+    public static long cacheSavedTime = 0;
+    //aciertos, fallas y desalojos de los caches locales y de los de camino
+    public static final LocalCache.Stats LOCAL_STATS = new LocalCache.Stats();
+    public static final LocalCache.Stats PATH_STATS = new LocalCache.Stats();
+    //copias de trozos enviadas a caches de camino
+    public static long pathPushes = 0;
+    //recuperaciones de archivos terminadas y abandonadas (al vencer su plazo
+    //o al agotar los reintentos de un trozo o del manifest)
+    public static long requestsDone = 0;
+    public static long requestsFailed = 0;
+    //lookups de manifests y de trozos reenviados por falta de respuesta
+    public static long retries = 0;
 
     protected MSPastryProtocol routeLayer;
     public int step;
@@ -43,14 +112,160 @@ public class DistributedFileSystem implements EDProtocol, Cloneable {
     private int pid;
     private int tid;
     public double P;
-    //Se usa cuando se están esperando resultados, después de un LookUP
-    private int piecesWaiting;
-    //Se aguardan los resultados, cuando se esperan resultados de un LookUP
-    private List<byte[]> chunks;
     //Dictionario que ocupa una llave de un archivo 
-    //para acceder a la lista de llaves donde están los trozos del archivo
-    private Map<BigInteger,List<BigInteger>> tableData;
-    private String size;
+    //para acceder a la lista de llaves de los trozos del archivo
+    private KeyIndex<Manifest> tableData;
+    //Archivos que se estan particionando y enviando, por llave del archivo
+    private Map<UInt128,Insert> inserting;
+    //máximo de trozos que se leen y envían en cada paso de una insercion
+    private int window;
+    //particion de archivos por "channel" (por defecto, copia cada trozo) o
+    //"mmap" (los trozos son slices del archivo mapeado, se copian solo al guardarlos)
+    private boolean splitMmap;
+    //particion en trozos de largo fijo ("fixed", por defecto) o definidos por contenido ("cdc")
+    private boolean cdc;
+    private int cdcMin, cdcAvg, cdcMax;
+    //referencias (inserts) a cada trozo del que el nodo es responsable: un trozo
+    //que ya esta no se guarda de nuevo. No hay borrado de archivos, asi que solo
+    //crecen; releaseChunkStore() las limpia junto con el ChunkStore
+    private KeyIndex<Integer> refs;
+    //compresion de los trozos: "none" (por defecto) o "deflate" (ver ChunkCodec)
+    private boolean compress;
+    //codigo de borrado: null (por defecto, "none") o Reed-Solomon k+m ("rs")
+    private ReedSolomon rs;
+    //archivos que se estan recuperando, por id de la consulta del lookup
+    //(los lookups de sus trozos y los resultados llevan el mismo id)
+    private Map<Long,Retrieval> requests;
+    //lookups que esperan a que baje el número de recuperaciones en curso
+    private ArrayDeque<Query> queued;
+    //máximo de recuperaciones en curso y plazo de cada una (0 sin plazo)
+    private int maxRequests;
+    private long requestTimeout;
+    //espera de la respuesta de un lookup antes del primer reintento (0 sin
+    //reintentos), se duplica en cada reintento, hasta max_retries reintentos
+    private long retryTimeout;
+    private int maxRetries;
+    //replicacion: tecnica y máximo de réplicas de cada trozo
+    private int technique;
+    private int maxReplicas;
+    //lookups que el nodo atiende por ventana de check_window unidades de
+    //tiempo antes de replicar (max_debit según la capacidad del nodo)
+    private int capacity;
+    private long checkWindow;
+    private long window0;
+    private int debit;
+    //nodos a los que se envio una réplica de cada trozo del que es responsable
+    private KeyIndex<List<UInt128>> replicaHolders;
+    //trozos que ya se replicaron en la ventana actual
+    private Set<UInt128> replicatedNow;
+    //réplicas de trozos de otros nodos que guarda este nodo
+    private int replicaCount;
+    //cache local de trozos y manifests pedidos (null si local_cache es 0)
+    private LocalCache cache;
+    //cache de camino: copias de trozos populares que le envio el nodo
+    //siguiente en la ruta de sus lookups (null si path_cache es 0)
+    private LocalCache pathCache;
+    //lookups atendidos de un trozo en la ventana actual antes de enviar
+    //una copia al nodo anterior del camino
+    private int pathThreshold;
+    private Map<UInt128,Integer> pathServed;
+    //promedio movil del tiempo que tarda un trozo pedido (desde el primer pedido,
+    //con los reintentos), -1 si no ha llegado ninguno
+    private double chunkTime = -1;
+
+    private static class Insert {
+        final Query q;
+        final FileSplit split;
+        final Manifest manifest = new Manifest();
+
+        //llaves ya enviadas del archivo, para no enviar dos veces un trozo repetido
+        final Set<UInt128> sent = new HashSet<>();
+        //trozos (ya comprimidos) y llaves del grupo que se esta codificando
+        final List<ByteBuffer> group = new ArrayList<>();
+        final List<UInt128> groupKeys = new ArrayList<>();
+
+        Insert(Query q, FileSplit split) {
+            this.q = q;
+            this.split = split;
+        }
+    }
+
+    /*
+        Archivo que se esta recuperando: cada trozo de datos se escribe en su
+        offset del archivo de salida (ya del largo final) apenas llega, o
+        apenas se decodifica su grupo con codigo de borrado, asi no se guarda
+        en memoria ningun trozo que ya llego. written marca los trozos escritos.
+        Con codigo de borrado se piden a la vez los k+m fragmentos de cada
+        grupo y el grupo se decodifica con los primeros k que llegan; los
+        demas se ignoran. Hasta que llega el manifest (open()) solo se conoce
+        el id y el archivo.
+    */
+    private static class Retrieval {
+        final long id;
+        final UInt128 key;
+        final String[] value;
+        final long start;
+        //reintentos hechos por llave (la del archivo para el manifest)
+        final Map<UInt128,Integer> attempts = new HashMap<>();
+        //tiempo del primer pedido de cada trozo que aun no llega
+        final Map<UInt128,Long> pendingSince = new HashMap<>();
+        Manifest manifest;
+        //posiciones del manifest de cada llave (un trozo puede repetirse)
+        final Map<UInt128,List<Integer>> positions = new HashMap<>();
+        File file;
+        FileChannel out;
+        BitSet written;
+        int left;
+        boolean started;
+        //codigo de borrado: fragmentos recibidos de los grupos aun sin decodificar
+        ByteBuffer[] fragments;
+        int[] have;
+        boolean[] done;
+
+        Retrieval(long id, UInt128 key, String[] value, long start) {
+            this.id = id;
+            this.key = key;
+            this.value = value;
+            this.start = start;
+        }
+
+        void open(Manifest manifest, int k, int m, File file) throws IOException {
+            this.manifest = manifest;
+            this.file = file;
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            raf.setLength(manifest.size());
+            out = raf.getChannel();
+            left = manifest.chunkCount();
+            written = new BitSet(left);
+            List<UInt128> keys = manifest.keys;
+            int groups = m==0 ? 0 : keys.size() / (k + m);
+            fragments = new ByteBuffer[m==0 ? 0 : keys.size()];
+            have = new int[groups];
+            done = new boolean[groups];
+            for (int i = 0; i < keys.size(); i++) {
+                UInt128 key = keys.get(i);
+                if (key == null) {
+                    //fragmento de datos vacio (ultimo grupo incompleto)
+                    have[i / (k + m)]++;
+                    continue;
+                }
+                List<Integer> l = positions.get(key);
+                if (l == null) {
+                    l = new ArrayList<>();
+                    positions.put(key, l);
+                }
+                l.add(i);
+            }
+        }
+    }
+    //Trozos de los que es responsable este nodo, se crea al primer uso
+    private ChunkStore store;
+    //tipo de ChunkStore: "segment" (por defecto), "file" (un archivo por trozo)
+    //o "memory" (en memoria fuera del heap, sin disco)
+    private String storeType;
+    private long segmentSize;
+    //lecturas por "channel" (por defecto) o "mmap" (slices de los archivos mapeados)
+    private boolean mmap;
     /*
         Se implementa un protocolo de DFS para nuestra aplicación
     */
@@ -62,183 +277,917 @@ public class DistributedFileSystem implements EDProtocol, Cloneable {
         P = 1.0;  // Probability to accept a message equal 1
         this.routeLayer = ((MSPastryProtocol) CommonState.getNode().getProtocol(tid));
         this.routeLayer.setMyApp(this);
-        tableData = new HashMap<>();
-        this.size = Configuration.getString(PAR_SIZE);
+        tableData = new KeyIndex<>();
+        inserting = new HashMap<>();
+        this.window = Configuration.getInt(prefix + "." + PAR_WIN, 16);
+        this.splitMmap = Configuration.getString(prefix + "." + PAR_SPLIT, "channel").equals("mmap");
+        this.cdc = Configuration.getString(prefix + "." + PAR_CHUNKING, "fixed").equals("cdc");
+        this.cdcMin = Configuration.getInt(prefix + "." + PAR_CDC_MIN, 32 * 1024);
+        this.cdcAvg = Configuration.getInt(prefix + "." + PAR_CDC_AVG, 128 * 1024);
+        this.cdcMax = Configuration.getInt(prefix + "." + PAR_CDC_MAX, 512 * 1024);
+        refs = new KeyIndex<>();
+        this.compress = Configuration.getString(prefix + "." + PAR_COMPRESSION, "none").equals("deflate");
+        this.technique = Configuration.getInt(prefix + "." + PAR_TECH, TECH_NONE);
+        this.maxReplicas = Configuration.getInt(prefix + "." + PAR_REPLICA, 3);
+        this.checkWindow = Configuration.getLong(prefix + "." + PAR_CHECK, 10000);
+        this.capacity = nodeCapacity(Configuration.getInt(prefix + "." + PAR_MDEB, 300));
+        replicaHolders = new KeyIndex<>();
+        replicatedNow = new HashSet<>();
+        requests = new HashMap<>();
+        queued = new ArrayDeque<>();
+        this.maxRequests = Configuration.getInt(prefix + "." + PAR_MAX_REQ, 4);
+        this.requestTimeout = Configuration.getLong(prefix + "." + PAR_REQ_TIMEOUT, 100000);
+        this.retryTimeout = Configuration.getLong(prefix + "." + PAR_RETRY_TIMEOUT, 1000);
+        this.maxRetries = Configuration.getInt(prefix + "." + PAR_MAX_RETRIES, 3);
+        if(Configuration.getInt(prefix + "." + PAR_LC, 0)==1){
+            //lc_cache_size en MB
+            this.cache = LocalCache.create(Configuration.getString(prefix + "." + PAR_LC_POLICY, "lru"),
+                    Configuration.getLong(prefix + "." + PAR_LC_SIZE, 10) * 1024 * 1024, LOCAL_STATS);
+        }
+        pathServed = new HashMap<>();
+        if(Configuration.getInt(prefix + "." + PAR_PC, 0)==1){
+            //pc_cache_size en MB, pc_ttl en unidades de tiempo de la simulacion
+            this.pathCache = LocalCache.create(Configuration.getString(prefix + "." + PAR_PC_POLICY, "tinylfu"),
+                    Configuration.getLong(prefix + "." + PAR_PC_SIZE, 4) * 1024 * 1024, PATH_STATS);
+            this.pathCache.setTtl(Configuration.getLong(prefix + "." + PAR_PC_TTL, 50000));
+            this.pathThreshold = Configuration.getInt(prefix + "." + PAR_PC_THRESHOLD, 2);
+        }
+        if(Configuration.getString(prefix + "." + PAR_CODING, "none").equals("rs")){
+            this.rs = new ReedSolomon(Configuration.getInt(prefix + "." + PAR_RS_K, 4),
+                    Configuration.getInt(prefix + "." + PAR_RS_M, 2));
+        }
+        this.storeType = Configuration.getString(prefix + "." + PAR_STORE, "segment");
+        this.segmentSize = Configuration.getLong(prefix + "." + PAR_SEGMENT, 64 * 1024 * 1024);
+        this.mmap = Configuration.getString(prefix + "." + PAR_READ, "channel").equals("mmap");
+        MappedRegions.setCapacity(Configuration.getLong(prefix + "." + PAR_MMAP_CACHE, 256L * 1024 * 1024));
+        MappedRegions.setWindow(Configuration.getLong(prefix + "." + PAR_MMAP_WINDOW, 1024 * 1024));
+        SlabArena.setSlabSize(Configuration.getInt(prefix + "." + PAR_SLAB, 64 * 1024 * 1024));
     }
 
     
+    /*
+        Capacidad del nodo: pn, nn y wn son los porcentajes de nodos
+        poderosos, normales y debiles, que atienden max_debit, la mitad
+        y un cuarto de lookups por ventana.
+    */
+    private static int nodeCapacity(int maxDebit) {
+        int pn = Configuration.getInt(prefix + "." + PAR_PPOWER, 100);
+        int nn = Configuration.getInt(prefix + "." + PAR_PNORMAL, 0);
+        int wn = Configuration.getInt(prefix + "." + PAR_PWEAK, 0);
+        if(pn+nn+wn<=0){
+            return maxDebit;
+        }
+        int r = CommonState.r.nextInt(pn+nn+wn);
+        if(r<pn){
+            return maxDebit;
+        }
+        return r<pn+nn ? Math.max(1, maxDebit/2) : Math.max(1, maxDebit/4);
+    }
+
     /*
         Función que ocupa el protocolo pastry para comunicarse con el DFS
-        a través de esta entrega mensajes al DFS según sea de LookUP o
-        de entrega de resultados (si es que corresponde)
-        En el caso del lookUP si es responsable de el LookUP y tiene
-        la tabla de llaves para unir al archivo
-        envía peticiones de lookup a los nodos que correspondan
-        si no, devuelve la consulta al DHT, con el nodo "que el cree"
-        que debería tener esa llave
-        En el caso de result, disminuye los resultados esperados en 1
-        y si ya los recibió todos, un el archivo en un archivo llamado
-        resultado.mp3
+        a través de esta entrega mensajes al DFS. Los de tipo Insert_DFS y
+        LookUp_DFS llegan al nodo responsable de la llave del archivo
+        (el numericamente mas cercano), los de tipo Manifest y Result
+        llegan directo al nodo que pidio el archivo.
+        En el caso del Insert_DFS particiona el archivo, envía cada trozo
+        al nodo responsable de su llave (de a window trozos, ver distribute())
+        y guarda la lista de llaves de los trozos. La llave de un trozo es el
+        hash de su contenido, asi un trozo repetido (en el mismo archivo o en
+        otro) va siempre al mismo nodo, que lo guarda una sola vez. Con
+        compresion los trozos viajan y se guardan codificados (ChunkCodec)
+        y se decodifican al llegar como resultado.
+        Con codigo de borrado (coding rs) cada grupo de k trozos se envía
+        junto a m fragmentos de paridad, y el manifest tiene k+m llaves por
+        grupo (ver flushGroup()); se recupera con cualesquiera k de ellas.
+        En el caso de Replica guarda la réplica de un trozo de otro nodo, y
+        en el de Cache guarda la copia de un trozo popular en el cache de camino.
+        En el caso del LookUp_DFS, si tiene la lista de llaves del archivo
+        se la envía (Manifest) al nodo que pidio el archivo.
+        En el caso del Manifest, pide cada trozo a su nodo responsable (los
+        que no estan en el cache local, ver fetch()).
+        En el caso de result, busca la recuperacion con el id de la consulta y
+        escribe el trozo en su lugar del archivo ./Resultados/resultado-<nodeId>-<id>.mp3
+        (ver writeChunk()), en el orden en que lleguen
     */
     public void receive(Object event) {		//RECIVE DESDE PASTRY
         Query q = (Query) event;
         System.out.println("DFS RECIVE MENSAJE DESDE DHT");
         switch (q.messageType) {
-            case Query.MSG_LOOKUP:
-                System.out.println("LookUP message:");
-                System.out.println("Body: "+q.body.toString()+" Key: "+q.key.toString());
-                boolean iHaveIt = false;
-                for(Object key: tableData.keySet()){
-                    if(((BigInteger)key).compareTo(q.key)==0){
-                        iHaveIt = true;
-                        break;
-                    }
-                }
-                if(iHaveIt){
-                    System.out.println("DFS Tiene la llave");
-                    List<BigInteger> l = tableData.get(q.key);
-                    for(BigInteger b:l){
-                        q.messageType = Query.MSG_LOOKUP;
-                        routeLayer.send(b, q);
+            case Query.MSG_INSERT_DFS:
+                System.out.println("Insert DFS message:");
+                System.out.println("Key: "+q.key.toString());
+                try {
+                    FileSplit split = cdc ? new FileSplit(q.value[0], cdcMin, cdcAvg, cdcMax, splitMmap)
+                            : new FileSplit(q.value[0], FileSplit.CHUNK_SIZE, splitMmap);
+                    //un insert nuevo del mismo archivo reemplaza al que sigue en curso:
+                    //se cierra su particion y sus continuaciones se ignoran (distribute())
+                    Insert old = inserting.put(q.key, new Insert(q, split));
+                    if(old!=null){
+                        old.split.close();
                     }
+                } catch (IOException | IllegalArgumentException ex) {
+                    ex.printStackTrace();
+                    break;
                 }
-                else{
-                    System.out.println("DFS no tienee la llave");
-                    q.messageType = Query.MSG_LOOKUP_DFS;
-                    routeLayer.send(getNodeId(remainder(q.key)), q);
-                }
+                distribute(q.key, q.id);
                 break;
             case Query.MSG_LOOKUP_DFS:
                 System.out.println("LookUP DFS message:");
-                System.out.println("Body: "+q.body.toString()+" Key: "+q.key.toString());
-                iHaveIt = false;
-                for(Object key: tableData.keySet()){
-                    if(((BigInteger)key).compareTo(q.key)==0){
-                        iHaveIt = true;
-                        break;
-                    }
-                }
-                if(iHaveIt){
+                System.out.println("Key: "+q.key.toString());
+                if(tableData.containsKey(q.key)){
                     System.out.println("DFS tiene la llave");
-                    List<BigInteger> l = tableData.get(q.key);
-                    for(BigInteger b:l){
-                        routeLayer.send(b, q);
-                    }
+                    Query manifest = new Query(Query.MSG_MANIFEST, tableData.get(q.key));
+                    manifest.id = q.id;
+                    manifest.key = q.key;
+                    manifest.value = q.value;
+                    manifest.src = routeLayer.nodeId;
+                    routeLayer.sendDirect(q.src, manifest);
                 }
                 else{
-                    System.out.println("AQUI HAY UN PROBLEMA");
-                    System.out.println("DFS no tiene la llave");
-                    routeLayer.send(getNodeId(remainder(q.key)), q);
+                    System.out.println("DFS no tiene la llave, el archivo no existe");
+                }
+                break;
+            case Query.MSG_MANIFEST:
+                Manifest l = (Manifest) q.body;
+                if(cache!=null){
+                    cache.put(q.key, l, l.bytes());
+                }
+                Retrieval pending = requests.get(q.id);
+                if(pending!=null && pending.manifest==null){
+                    fetch(pending, l);
+                }
+                break;
+            case Query.MSG_REPLICA:
+                storeReplica(q.key, (ByteBuffer) q.body);
+                break;
+            case Query.MSG_CACHE:
+                if(pathCache!=null){
+                    ByteBuffer copy = (ByteBuffer) q.body;
+                    pathCache.put(q.key, copy, copy.remaining());
                 }
                 break;
             case Query.MSG_RESULT:
-                if(piecesWaiting>0){
-                    piecesWaiting--;
-                    chunks.add((byte[]) q.body);
-                    if(piecesWaiting==0){
-                        List<BigInteger> list = tableData.get(q.key);
-                        String temp = "";
-                        for(int i=0;i<list.size();i++){
-                            temp = temp+new String(chunks.get(i)); 
-                        }
-                        File f = new File("./Resultados");
-                        f.mkdir();
-                        try {
-                            BufferedWriter bw = new BufferedWriter(new FileWriter(f.getAbsolutePath()+"/resultado.mp3"));
-                            bw.write(temp);
-                            bw.close();
-                        } catch (IOException ex) {
-                            ex.printStackTrace();
-                        }
+                ByteBuffer data = (ByteBuffer) q.body;
+                wireBytes += data.remaining();
+                if(cache!=null){
+                    cache.put(q.key, data, data.remaining());
+                }
+                Retrieval r = requests.get(q.id);
+                if(r!=null && r.manifest!=null){
+                    Long since = r.pendingSince.remove(q.key);
+                    if(since!=null){
+                        chunkTime = chunkTime<0 ? CommonState.getTime()-since
+                                : 0.9*chunkTime + 0.1*(CommonState.getTime()-since);
                     }
+                    onResult(r, q.key, data);
+                }
+        }
+    }
+
+    /*
+        Registra la recuperacion del archivo (con el id de la consulta), agenda
+        su plazo y pide su manifest, al cache local o al nodo responsable del
+        archivo.
+    */
+    private void startLookup(Query q) {
+        Retrieval r = new Retrieval(q.id, q.key, q.value, CommonState.getTime());
+        requests.put(q.id, r);
+        if(requestTimeout>0){
+            Query timeout = new Query(Query.MSG_TIMEOUT, null);
+            timeout.id = q.id;
+            EDSimulator.add(requestTimeout, timeout, NodeRegistry.lookup(routeLayer.nodeId), pid);
+        }
+        Object manifest = cache==null ? null : cache.get(q.key);
+        if(manifest!=null){
+            cacheSavedTime += Math.max(chunkTime, 0);
+            fetch(r, (Manifest) manifest);
+            return;
+        }
+        requestManifest(r, false);
+    }
+
+    /*pide el manifest al responsable del archivo y agenda su reintento*/
+    private void requestManifest(Retrieval r, boolean alternate) {
+        Query lookup = new Query(Query.MSG_LOOKUP_DFS, null);
+        lookup.id = r.id;
+        lookup.key = r.key;
+        lookup.value = r.value;
+        lookup.src = routeLayer.nodeId;
+        if(alternate){
+            routeLayer.sendAlternate(r.key, lookup);
+        }
+        else{
+            routeLayer.send(r.key, lookup);
+        }
+        scheduleRetry(r, r.key);
+    }
+
+    /*pide el trozo key al responsable y agenda su reintento*/
+    private void requestChunk(Retrieval r, UInt128 key, boolean alternate) {
+        Query lookup = Query.makeLookup(r.value[0]);
+        lookup.id = r.id;
+        lookup.key = key;
+        lookup.value = r.value;
+        lookup.src = routeLayer.nodeId;
+        //un reintento no cambia el tiempo del primer pedido
+        r.pendingSince.putIfAbsent(key, CommonState.getTime());
+        if(alternate){
+            routeLayer.sendAlternate(key, lookup);
+        }
+        else{
+            routeLayer.send(key, lookup);
+        }
+        scheduleRetry(r, key);
+    }
+
+    /*
+        Agenda la revision de la respuesta a key: retry_timeout despues del
+        primer envío, el doble despues de cada reintento.
+    */
+    private void scheduleRetry(Retrieval r, UInt128 key) {
+        if(retryTimeout<=0){
+            return;
+        }
+        Integer done = r.attempts.get(key);
+        Query retry = new Query(Query.MSG_RETRY, null);
+        retry.id = r.id;
+        retry.key = key;
+        EDSimulator.add(retryTimeout << (done==null ? 0 : done), retry,
+                NodeRegistry.lookup(routeLayer.nodeId), pid);
+    }
+
+    /*
+        Vencio la espera de key (el manifest o un trozo) de la recuperacion
+        id: si aun no llega se pide de nuevo por otra ruta (ver
+        MSPastryProtocol.sendAlternate()). Agotados los reintentos del
+        manifest o de un trozo sin codigo de borrado la recuperacion se
+        abandona; con codigo de borrado el grupo aun puede decodificarse con
+        otros fragmentos, asi que solo se deja de pedir ese fragmento.
+    */
+    private void retry(long id, UInt128 key) {
+        Retrieval r = requests.get(id);
+        if(r==null || arrived(r, key)){
+            return;
+        }
+        Integer done = r.attempts.get(key);
+        int attempt = done==null ? 1 : done + 1;
+        if(attempt>maxRetries){
+            if(r.manifest==null || rs==null){
+                abandon(r);
+            }
+            return;
+        }
+        r.attempts.put(key, attempt);
+        retries++;
+        if(r.manifest==null){
+            requestManifest(r, true);
+        }
+        else{
+            requestChunk(r, key, true);
+        }
+    }
+
+    /*llego la respuesta a key (el manifest, si es la llave del archivo)*/
+    private boolean arrived(Retrieval r, UInt128 key) {
+        if(r.manifest==null){
+            return false;
+        }
+        List<Integer> l = r.positions.get(key);
+        if(l==null){
+            return true;
+        }
+        int i = l.get(0);
+        if(rs==null){
+            return r.written.get(i);
+        }
+        return r.done[i / (rs.dataShards() + rs.parityShards())] || r.fragments[i]!=null;
+    }
+
+    /*
+        Pide los trozos del manifest l (con codigo de borrado, todos los
+        fragmentos), una vez cada llave aunque se repita en el archivo, y
+        prepara el archivo de salida. Los que estan en el cache local se
+        toman de ahi.
+    */
+    private void fetch(Retrieval r, Manifest l) {
+        File dir = new File("./Resultados");
+        dir.mkdir();
+        try {
+            r.open(l, rs==null ? 1 : rs.dataShards(), rs==null ? 0 : rs.parityShards(),
+                    new File(dir, "resultado-" + routeLayer.nodeId + "-" + r.id + ".mp3"));
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            end(r);
+            return;
+        }
+        if(r.left==0){
+            finish(r);
+            return;
+        }
+        for(UInt128 b:new ArrayList<>(r.positions.keySet())){
+            Object cached = cache==null ? null : cache.get(b);
+            if(cached!=null){
+                cacheSavedTime += Math.max(chunkTime, 0);
+                onResult(r, b, (ByteBuffer) cached);
+                if(r.left==0){
+                    //el cache completo el archivo (finish() ya saco la recuperacion)
+                    return;
+                }
+                continue;
+            }
+            requestChunk(r, b, false);
+        }
+        System.out.println("Se inicia captura de resultados");
+        System.out.println("___________________________________");
+    }
+
+    /*un trozo pedido llego (por la red o del cache local)*/
+    private void onResult(Retrieval r, UInt128 key, ByteBuffer data) {
+        if(!r.positions.containsKey(key) || r.left==0){
+            return;
+        }
+        if(rs!=null){
+            receiveFragment(r, key, data);
+        }
+        else{
+            ByteBuffer chunk = compress ? ChunkCodec.decode(data) : data;
+            for(int i:r.positions.get(key)){
+                writeChunk(r, i, chunk);
+            }
+        }
+        if(r.left==0){
+            finish(r);
+        }
+    }
+
+    /*
+        Escribe el trozo de datos número index en su offset del archivo de
+        salida, si no estaba escrito (un trozo puede llegar mas de una vez).
+    */
+    private void writeChunk(Retrieval r, int index, ByteBuffer chunk) {
+        if(r.written.get(index)){
+            return;
+        }
+        ByteBuffer b = chunk.duplicate();
+        long pos = r.manifest.offset(index);
+        try {
+            while(b.hasRemaining()){
+                pos += r.out.write(b, pos);
+            }
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            return;
+        }
+        if(!r.started){
+            r.started = true;
+            MSPastryObserver.firstByteTime.add(CommonState.getTime() - r.start);
+        }
+        r.written.set(index);
+        r.left--;
+    }
+
+    /*todos los trozos del archivo estan escritos*/
+    private void finish(Retrieval r) {
+        MSPastryObserver.addFileTime(CommonState.getTime() - r.start);
+        requestsDone++;
+        end(r);
+    }
+
+    /*el plazo de la recuperacion id vencio: si sigue en curso se abandona*/
+    private void expire(long id) {
+        Retrieval r = requests.get(id);
+        if(r!=null){
+            abandon(r);
+        }
+    }
+
+    /*se abandona la recuperacion r y se borra lo que se alcanzo a escribir*/
+    private void abandon(Retrieval r) {
+        requestsFailed++;
+        end(r);
+        if(r.file!=null){
+            r.file.delete();
+        }
+    }
+
+    /*
+        Saca la recuperacion de la tabla y, si hay lookups esperando, empieza
+        el siguiente.
+    */
+    private void end(Retrieval r) {
+        if(r.out!=null){
+            try {
+                r.out.close();
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        }
+        requests.remove(r.id);
+        if(!queued.isEmpty() && requests.size()<maxRequests){
+            startLookup(queued.poll());
+        }
+    }
+
+    /*
+        Guarda el fragmento en cada posicion del manifest donde aparece y
+        decodifica los grupos que ya tienen k fragmentos.
+    */
+    private void receiveFragment(Retrieval r, UInt128 key, ByteBuffer data) {
+        int k = rs.dataShards(), n = k + rs.parityShards();
+        for(int i:r.positions.get(key)){
+            int g = i / n;
+            if(r.done[g] || r.fragments[i]!=null){
+                continue;
+            }
+            r.fragments[i] = data;
+            if(++r.have[g]==k){
+                decodeGroup(r, g);
+                r.done[g] = true;
+            }
+        }
+    }
+
+    /*
+        Recupera los trozos del grupo g y los escribe. Si falta alguno de
+        datos se reconstruye desde los fragmentos que llegaron, del largo de
+        la paridad. Despues se sueltan los fragmentos del grupo.
+    */
+    private void decodeGroup(Retrieval r, int g) {
+        int k = rs.dataShards(), n = k + rs.parityShards();
+        int base = g * n;
+        boolean[] present = new boolean[n];
+        int length = 0;
+        boolean missing = false;
+        for(int i=0;i<n;i++){
+            present[i] = r.fragments[base+i]!=null || (i<k && r.manifest.keys.get(base+i)==null);
+            if(i<k && !present[i]){
+                missing = true;
+            }
+            if(i>=k && r.fragments[base+i]!=null){
+                length = r.fragments[base+i].remaining();
+            }
+        }
+        byte[][] shards = new byte[n][];
+        if(missing){
+            for(int i=0;i<n;i++){
+                shards[i] = new byte[length];
+                if(r.fragments[base+i]!=null){
+                    r.fragments[base+i].duplicate().get(shards[i], 0, r.fragments[base+i].remaining());
                 }
+            }
+            rs.decode(shards, present, length);
+        }
+        for(int i=0;i<k;i++){
+            if(r.manifest.keys.get(base+i)==null){
+                continue;
+            }
+            ByteBuffer b = missing ? ByteBuffer.wrap(shards[i]) : r.fragments[base+i].duplicate();
+            int len = b.getInt();
+            b.limit(b.position() + len);
+            b = b.slice();
+            writeChunk(r, g*k+i, compress ? ChunkCodec.decode(b) : b);
+        }
+        for(int i=0;i<n;i++){
+            r.fragments[base+i] = null;
+        }
+    }
+    /*
+        Envía los siguientes trozos (a lo más window) del archivo que se esta
+        insertando. Si quedan trozos se agenda un evento Insert_DFS para este
+        mismo nodo dentro de step unidades de tiempo, que sigue la distribucion,
+        asi solo hay window trozos leidos del archivo a la vez por cada paso.
+        Al enviar el ultimo trozo se guarda la lista de llaves del archivo.
+    */
+    private void distribute(UInt128 fileKey, long id) {
+        Insert ins = inserting.get(fileKey);
+        if(ins==null || ins.q.id!=id){
+            //continuacion de un insert terminado o reemplazado
+            return;
+        }
+        for (int n = 0; n < window && ins.split.hasNext(); n++) {
+            ByteBuffer data;
+            try {
+                data = ins.split.next();
+            } catch (UncheckedIOException ex) {
+                ex.printStackTrace();
+                ins.split.close();
+                inserting.remove(fileKey);
+                return;
+            }
+            insertedBytes += data.remaining();
+            ins.manifest.addChunk(data.remaining());
+            UInt128 key = peersim.utils.HashSHA.applyHash(data);
+            if(rs!=null){
+                ins.group.add(compress ? ChunkCodec.encode(data) : data);
+                ins.groupKeys.add(key);
+                if(ins.group.size()==rs.dataShards() || !ins.split.hasNext()){
+                    flushGroup(ins);
+                }
+                continue;
+            }
+            ins.manifest.keys.add(key);
+            if(ins.sent.contains(key)){
+                //repetido dentro del archivo, el nodo responsable ya lo recibe
+                dedupLogicalBytes += data.remaining();
+                dedupSkippedBytes += data.remaining();
+                continue;
+            }
+            sendChunk(ins, key, compress ? ChunkCodec.encode(data) : data);
+        }
+        if(ins.split.hasNext()){
+            Query next = new Query(Query.MSG_INSERT_DFS, null);
+            next.key = fileKey;
+            next.id = id;
+            EDSimulator.add(step, next, NodeRegistry.lookup(routeLayer.nodeId), pid);
+        }
+        else{
+            inserting.remove(fileKey);
+            tableData.put(fileKey, ins.manifest);
+            System.out.println("Termina distribucion para: "+ins.q.value[0]);
         }
     }
-    /*función para calcular a partir de un i, el nodeId del nodo i-esimo*/
-    public BigInteger getNodeId(int i){
-        MSPastryProtocol node = (MSPastryProtocol) Network.get(i).getProtocol(3);
-        return node.nodeId;
+
+    private void sendChunk(Insert ins, UInt128 key, ByteBuffer data) {
+        if(!ins.sent.add(key)){
+            dedupLogicalBytes += data.remaining();
+            dedupSkippedBytes += data.remaining();
+            return;
+        }
+        Query chunk = Query.makeInsert(data);
+        wireBytes += data.remaining();
+        chunk.key = key;
+        chunk.value = ins.q.value;
+        chunk.src = ins.q.src;
+        routeLayer.send(chunk.key, chunk);
     }
-    /*Ocupa el tamaño dle DHT para asignar un entero a una llave,
-        esto se hace con el objetivo de calcular que nodo i-esimo
-        le corresponde que llave
+
+    /*
+        Codifica y envía el grupo de trozos acumulado. Cada fragmento de
+        datos es el largo del trozo (4 bytes) seguido del trozo, y para
+        codificar se rellenan con ceros hasta el largo del mayor; los m
+        fragmentos de paridad tienen ese largo y su llave es el hash de su
+        contenido. Si el grupo tiene menos de k trozos (el ultimo del archivo)
+        los que faltan son fragmentos vacios que no se envían y van en el
+        manifest como null.
     */
-    public int remainder(BigInteger i){
-        return i.remainder(new BigInteger(this.size)).intValueExact();
+    private void flushGroup(Insert ins) {
+        int k = rs.dataShards(), n = k + rs.parityShards();
+        int length = 0;
+        for(ByteBuffer b:ins.group){
+            length = Math.max(length, 4 + b.remaining());
+        }
+        byte[][] shards = new byte[n][length];
+        for(int i=0;i<ins.group.size();i++){
+            ByteBuffer b = ins.group.get(i).duplicate();
+            ByteBuffer.wrap(shards[i]).putInt(b.remaining()).put(b);
+        }
+        rs.encode(shards, length);
+        for(int i=0;i<k;i++){
+            if(i>=ins.group.size()){
+                ins.manifest.keys.add(null);
+                continue;
+            }
+            UInt128 key = ins.groupKeys.get(i);
+            ins.manifest.keys.add(key);
+            sendChunk(ins, key, ByteBuffer.wrap(shards[i], 0, 4 + ins.group.get(i).remaining()).slice());
+        }
+        for(int i=k;i<n;i++){
+            ByteBuffer b = ByteBuffer.wrap(shards[i]);
+            UInt128 key = peersim.utils.HashSHA.applyHash(b);
+            ins.manifest.keys.add(key);
+            sendChunk(ins, key, b);
+        }
+        ins.group.clear();
+        ins.groupKeys.clear();
     }
+
     /*
         Esta función es la que se implementa desde EDProtocol (Event-Driven Protocol)
         Esta función es la que procesa los eventos que se lancen a este nodo
-        desde la aplicación o desde esta misma capa pero hacia otro nodo
-        a través del Pastry.
-        Para los mensajes de tipo LookUP o LoopUpDFS, se revisa si esa llave la posee este DFS
-        si la posee, pide a cada nodo que corresponde las llaves que corresponden
-        al archivo que se está buscando, si no lo tiene devuelve a pastry el lookup
-        para encontrar el nodo responsable.
-        Para los mensajes de Insert se hace cargo de las llaves si es que le corresponde
-        la llave del nombre del archivo y de particionar el archivo y enviarselo a otros nodos.
-        Si no le corresponden las llaves, envía la query al nodo que el considera que le corresponde
-        la llave del archivo.
+        desde la aplicación.
+        Los mensajes de tipo LookUP se rutean como LookUp_DFS hacia el nodo
+        responsable de la llave del archivo, que conoce las llaves de sus trozos.
+        Los mensajes de Insert se rutean como Insert_DFS hacia el nodo responsable
+        de la llave del archivo, que lo particiona y envía los trozos.
+        El nodo recupera a lo más max_requests archivos a la vez: los lookups
+        que llegan con el máximo esperan en una cola. Cada recuperacion se
+        abandona si no termina en request_timeout unidades de tiempo.
     */
     @Override
     public void processEvent(Node myNode, int pid, Object event) {  // LLEGA DEL GENERADOR DE TRAFICO
         Query q = (Query) event;
+        if(q.messageType==Query.MSG_INSERT_DFS){
+            //continuacion de una insercion, agendada por distribute()
+            distribute(q.key, q.id);
+            return;
+        }
+        if(q.messageType==Query.MSG_TIMEOUT){
+            //plazo de una recuperacion, agendado por startLookup()
+            expire(q.id);
+            return;
+        }
+        if(q.messageType==Query.MSG_RETRY){
+            //espera de una respuesta, agendada por scheduleRetry()
+            retry(q.id, q.key);
+            return;
+        }
         if(q.value[0]==null){
             return;
         }
+        q.src = routeLayer.nodeId;
         System.out.println("RECIBIMOS MENSAJE DESDE: "+q.src.toString());
         if(q.messageType==Query.MSG_LOOKUP){
             System.out.println("LookUP message:");
-            System.out.println("Body: "+q.body.toString()+" Key: "+q.key.toString());
+            System.out.println("Key: "+q.key.toString());
             System.out.println("Estamos en nodo con ID: "+myNode.getID());
-            boolean iHaveIt = false;
-            for(Object key: tableData.keySet()){
-                if(((BigInteger)key).compareTo(q.key)==0){
-                    iHaveIt = true;
-                    break;
+            if(requests.size()>=maxRequests){
+                queued.add(q);
+                return;
+            }
+            startLookup(q);
+        }
+        else if(q.messageType==Query.MSG_INSERT){
+            System.out.println("Insert message");
+            System.out.println("Key: "+q.key.toString());
+            System.out.println("Estamos en nodo con ID: "+myNode.getID());
+            q.messageType = Query.MSG_INSERT_DFS;
+            routeLayer.send(q.key, q);
+        }
+    }
+
+    /*
+        Almacenamiento de los trozos de los que es responsable el nodo:
+        segmentos ./chunks/<nodeId>-NNNNN.seg, un archivo por trozo en
+        el directorio ./<nodeId> si store es "file", o bloques del
+        SlabArena si store es "memory"
+    */
+    public ChunkStore getChunkStore() throws IOException {
+        if(store==null){
+            if(storeType.equals("memory")){
+                store = new MemoryChunkStore();
+            }
+            else if(storeType.equals("file")){
+                store = new FileChannelChunkStore(new File("./"+routeLayer.nodeId.toString()), mmap);
+            }
+            else{
+                store = new SegmentChunkStore(new File("./chunks"), routeLayer.nodeId.toString(), segmentSize, mmap);
+            }
+        }
+        return store;
+    }
+
+    /*
+        Guarda un trozo del que es responsable el nodo. Si ya lo tenia como
+        responsable solo aumenta su número de referencias. La primera
+        referencia cuenta los bytes guardados aunque el trozo ya estuviera
+        en el ChunkStore como réplica o de una ejecucion anterior (no se
+        escribe de nuevo). Devuelve true si es la primera referencia.
+    */
+    public boolean storeChunk(UInt128 key, ByteBuffer data) throws IOException {
+        ChunkStore s = getChunkStore();
+        dedupLogicalBytes += data.remaining();
+        Integer n = refs.get(key);
+        if(n!=null){
+            refs.put(key, n+1);
+            return false;
+        }
+        refs.put(key, 1);
+        if(!s.contains(key)){
+            s.put(key, data);
+            routeLayer.keyStored(key);
+        }
+        dedupStoredBytes += data.remaining();
+        if(technique==TECH_LEAFSET){
+            replicate(key, null);
+        }
+        return true;
+    }
+
+    /*
+        El nodo atendio un lookup del trozo, que siguio el camino path.
+        Con E&N o Bubble, si el nodo es responsable del trozo y atendio
+        mas lookups que su capacidad en la ventana actual, replica el
+        trozo (a lo más una vez por trozo y ventana).
+        Con cache de camino, al atender pc_threshold lookups de un trozo en
+        la ventana envía una copia al nodo anterior del camino, que desde
+        ahi contesta los lookups que pasan por el.
+    */
+    public void served(UInt128 key, UInt128[] path) {
+        long w = CommonState.getTime() / checkWindow;
+        if(w!=window0){
+            window0 = w;
+            debit = 0;
+            replicatedNow.clear();
+            pathServed.clear();
+        }
+        debit++;
+        if(pathCache!=null){
+            Integer n = pathServed.get(key);
+            n = n==null ? 1 : n+1;
+            pathServed.put(key, n);
+            if(n==pathThreshold){
+                pushOnPath(key, path);
+            }
+        }
+        if(debit<=capacity || !refs.containsKey(key) || (technique!=TECH_EN && technique!=TECH_BUBBLE)){
+            return;
+        }
+        if(replicatedNow.add(key)){
+            replicate(key, path);
+        }
+    }
+
+    /*
+        Envía réplicas del trozo sin pasarse de maxReplicas:
+        E&N (expansion exponencial a los vecinos): tantas réplicas nuevas
+        como las que ya hay (1, 2, 4, ...) en los vecinos mas cercanos del
+        leaf set que aun no tienen una.
+        LeafSet: en los maxReplicas vecinos mas cercanos (al guardar el trozo).
+        Bubble: en el nodo anterior del camino del lookup (el que se lo
+        reenvio) o, si ya tiene una, en el anterior a ese, asi las réplicas
+        avanzan por la ruta hacia quienes piden el trozo.
+    */
+    private void replicate(UInt128 key, UInt128[] path) {
+        List<UInt128> holders = replicaHolders.get(key);
+        if(holders==null){
+            holders = new ArrayList<>();
+            replicaHolders.put(key, holders);
+        }
+        int budget = maxReplicas - holders.size();
+        if(budget<=0){
+            return;
+        }
+        List<UInt128> targets = new ArrayList<>();
+        if(technique==TECH_BUBBLE){
+            for(int i=path.length-1;i>=0 && targets.isEmpty();i--){
+                if(path[i]!=null && !path[i].equals(routeLayer.nodeId) && !holders.contains(path[i])){
+                    targets.add(path[i]);
                 }
             }
-            if(iHaveIt){
-                List<BigInteger> l = tableData.get(q.key);
-                for(BigInteger b:l){
-                    routeLayer.send(b, q);
+        }
+        else{
+            int n = technique==TECH_EN ? Math.min(budget, Math.max(1, holders.size())) : budget;
+            for(UInt128 b:routeLayer.leafNeighbours(holders.size()+n)){
+                if(targets.size()<n && !holders.contains(b)){
+                    targets.add(b);
                 }
-                piecesWaiting = l.size();
-                chunks = new ArrayList<>();
-                System.out.println("Se inicia captura de resultados");
-                System.out.println("___________________________________");
             }
-            else{
-                System.out.format("No tenemos esa llave: %s se la enviamos a: %s",q.key.toString(),
-                        getNodeId(remainder(q.key)));
-                routeLayer.send2(getNodeId(remainder(q.key)), q);
+        }
+        if(targets.isEmpty()){
+            return;
+        }
+        ByteBuffer chunk;
+        try {
+            chunk = getChunkStore().get(key);
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            return;
+        }
+        if(chunk==null){
+            return;
+        }
+        for(UInt128 b:targets){
+            Query replica = new Query(Query.MSG_REPLICA, chunk);
+            replica.key = key;
+            replica.src = routeLayer.nodeId;
+            routeLayer.sendDirect(b, replica);
+            holders.add(b);
+            replicasSent++;
+        }
+    }
+
+    /*
+        Envía una copia del trozo (del ChunkStore o del cache de camino) al
+        nodo que le reenvio el lookup. El resultado va directo al que pidio
+        el trozo y no pasa por los nodos del camino, por eso la copia se
+        empuja un salto hacia atras en vez de guardarse al volver.
+    */
+    private void pushOnPath(UInt128 key, UInt128[] path) {
+        UInt128 previous = null;
+        for(int i=path.length-1;i>=0 && previous==null;i--){
+            if(path[i]!=null && !path[i].equals(routeLayer.nodeId)){
+                previous = path[i];
             }
         }
-        else if(q.messageType==Query.MSG_INSERT){
-            System.out.println("Insert message");
-            System.out.println("Body: "+q.body.toString()+" Key: "+q.key.toString());
-            System.out.println("Estamos en nodo con ID: "+myNode.getID());
-            if(this.routeLayer.nodeId.compareTo(getNodeId(remainder(q.key)))==0){
-                FileSplit fs = new FileSplit(q.value[0]);
-                BigInteger initialKey = q.key;
-                List<BigInteger> list = new ArrayList<>();
-                for (int i = 0; i < fs.sizeListChunk(); i++) {
-                    q.body = fs.getChunk(i);
-                    try {
-                        q.key = peersim.utils.HashSHA.applyHash(q.value[0]+Integer.toString(i));
-                        list.add(getNodeId(remainder(q.key)));
-                    } catch (UnsupportedEncodingException ex) {
-                        ex.printStackTrace();
-                    }
-                    tableData.put(initialKey, list);
-                    routeLayer.send(getNodeId(remainder(q.key)), q);
+        if(previous==null){
+            return;
+        }
+        ByteBuffer chunk;
+        try {
+            chunk = hasChunk(key) ? getChunkStore().get(key) : cachedOnPath(key);
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            return;
+        }
+        if(chunk==null){
+            return;
+        }
+        Query copy = new Query(Query.MSG_CACHE, chunk);
+        copy.key = key;
+        copy.src = routeLayer.nodeId;
+        routeLayer.sendDirect(previous, copy);
+        pathPushes++;
+    }
+
+    /*copia del trozo en el cache de camino, null si no esta o ya vencio*/
+    public ByteBuffer cachedOnPath(UInt128 key) {
+        Object chunk = pathCache==null ? null : pathCache.get(key);
+        return chunk==null ? null : ((ByteBuffer) chunk).duplicate();
+    }
+
+    /*guarda la réplica de un trozo de otro nodo, si no lo tiene*/
+    private void storeReplica(UInt128 key, ByteBuffer data) {
+        try {
+            ChunkStore s = getChunkStore();
+            if(!s.contains(key)){
+                s.put(key, data);
+                replicaCount++;
+                routeLayer.keyStored(key);
+            }
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    /*
+        Opciones configuradas, el observer imprime solo las estadisticas de
+        las que estan activas
+    */
+    public boolean compresses() {
+        return compress;
+    }
+
+    public boolean hasLocalCache() {
+        return cache!=null;
+    }
+
+    public boolean hasPathCache() {
+        return pathCache!=null;
+    }
+
+    public boolean storesOffHeap() {
+        return storeType.equals("memory");
+    }
+
+    public boolean readsMapped() {
+        return mmap;
+    }
+
+    /*número de réplicas de trozos de otros nodos que guarda el nodo*/
+    public int replicaCount() {
+        return replicaCount;
+    }
+
+    /*true si el nodo tiene guardado el trozo (sin crear el ChunkStore)*/
+    public boolean hasChunk(UInt128 key) {
+        return store!=null && store.contains(key);
+    }
+
+    /*manifests de los archivos de los que es responsable el nodo*/
+    public KeyIndex<Manifest> getManifests() {
+        return tableData;
+    }
+
+    /*
+        true si el archivo se puede recuperar con los trozos disponibles:
+        todos, o al menos k de cada grupo con codigo de borrado
+    */
+    public boolean recoverable(Manifest manifest, Predicate<UInt128> available) {
+        int k = rs==null ? 1 : rs.dataShards(), n = rs==null ? 1 : k + rs.parityShards();
+        for(int g=0;g<manifest.keys.size();g+=n){
+            int have = 0;
+            for(int i=g;i<g+n;i++){
+                UInt128 key = manifest.keys.get(i);
+                if(key==null || available.test(key)){
+                    have++;
                 }
-                System.out.println("Termina distribucion para: "+q.value[0]);
             }
-            else{
-                routeLayer.send2(getNodeId(remainder(q.key)), q);
+            if(have<k){
+                return false;
             }
         }
+        return true;
+    }
+
+    /*
+        Cierra el ChunkStore del nodo (que deja de ser responsable de sus
+        trozos), lo llama Turbulence al sacar el nodo de la red
+    */
+    public void releaseChunkStore() {
+        if(store==null){
+            return;
+        }
+        try {
+            store.close();
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+        store = null;
+        routeLayer.keysReleased();
+        refs.clear();
+        replicaHolders.clear();
+        replicaCount = 0;
     }
 
     public double getProbability() {
@@ -0,0 +1,120 @@
+package peersim.DistributedFileSystem;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import peersim.pastry.UInt128;
+
+/*
+    ChunkStore que guarda cada trozo en su propio archivo <dir>/<llave>.mp3
+    (el mismo formato que usaba performInsertData). Los archivos se escriben
+    y se leen por FileChannel a traves de un buffer directo del store, sin
+    convertir los bytes a String ni concatenar lineas. En modo mmap las
+    lecturas devuelven el archivo mapeado (ver MappedRegions); por eso un
+    trozo se reemplaza escribiendo un archivo nuevo y renombrandolo, nunca
+    truncando un archivo que pueda estar mapeado.
+*/
+public class FileChannelChunkStore implements ChunkStore {
+
+    private final File dir;
+    private final boolean mmap;
+    //largo de cada trozo guardado, para leerlo de una vez
+    private final Map<UInt128, Integer> lengths = new HashMap<>();
+    private long bytes = 0;
+    //buffer directo reusado para las lecturas y escrituras del canal
+    private ByteBuffer io = ByteBuffer.allocateDirect(128 * 1024);
+
+    public FileChannelChunkStore(File dir) {
+        this(dir, false);
+    }
+
+    public FileChannelChunkStore(File dir, boolean mmap) {
+        this.dir = dir;
+        this.mmap = mmap;
+    }
+
+    private File file(UInt128 key) {
+        return new File(dir, key.toString() + ".mp3");
+    }
+
+    private ByteBuffer io(int size) {
+        if (io.capacity() < size) {
+            io = ByteBuffer.allocateDirect(Math.max(size, io.capacity() * 2));
+        }
+        io.clear();
+        io.limit(size);
+        return io;
+    }
+
+    @Override
+    public void put(UInt128 key, ByteBuffer data) throws IOException {
+        dir.mkdirs();
+        ByteBuffer src = data.duplicate();
+        int size = src.remaining();
+        ByteBuffer buf = io(size);
+        buf.put(src);
+        buf.flip();
+        File f = file(key);
+        File tmp = new File(dir, key.toString() + ".tmp");
+        try (FileChannel ch = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buf.hasRemaining()) {
+                ch.write(buf);
+            }
+        }
+        MappedRegions.invalidate(f);
+        Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        Integer old = lengths.put(key, size);
+        bytes += size - (old == null ? 0 : old);
+    }
+
+    @Override
+    public ByteBuffer get(UInt128 key) throws IOException {
+        File f = file(key);
+        if (!f.exists()) {
+            return null;
+        }
+        try (FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+            int size = (int) ch.size();
+            if (mmap) {
+                return MappedRegions.slice(f, ch, 0, size);
+            }
+            ByteBuffer buf = io(size);
+            while (buf.hasRemaining() && ch.read(buf) >= 0) {
+                //NOOP
+            }
+            buf.flip();
+            ByteBuffer chunk = ByteBuffer.allocate(buf.remaining());
+            chunk.put(buf);
+            chunk.flip();
+            return chunk;
+        }
+    }
+
+    @Override
+    public boolean contains(UInt128 key) {
+        return lengths.containsKey(key) || file(key).exists();
+    }
+
+    @Override
+    public int size() {
+        return lengths.size();
+    }
+
+    @Override
+    public long bytes() {
+        return bytes;
+    }
+
+    @Override
+    public void close() {
+        lengths.clear();
+        bytes = 0;
+    }
+}
@@ -0,0 +1,94 @@
+package peersim.DistributedFileSystem;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.TreeMap;
+import peersim.pastry.UInt128;
+
+/*
+    LocalCache que saca la entrada con menos accesos (entre las de igual
+    número de accesos, la que llego a ese número primero). Las llaves se
+    agrupan por número de accesos, asi encontrar la victima no recorre
+    todas las entradas.
+*/
+public class LfuCache extends LocalCache {
+
+    private static class Entry {
+        final Object value;
+        final int size;
+        int freq = 1;
+
+        Entry(Object value, int size) {
+            this.value = value;
+            this.size = size;
+        }
+    }
+
+    private final Map<UInt128, Entry> entries = new HashMap<>();
+    private final TreeMap<Integer, LinkedHashSet<UInt128>> byFreq = new TreeMap<>();
+
+    public LfuCache(long capacity, Stats stats) {
+        super(capacity, stats);
+    }
+
+    private void link(UInt128 key, int freq) {
+        LinkedHashSet<UInt128> s = byFreq.get(freq);
+        if (s == null) {
+            s = new LinkedHashSet<>();
+            byFreq.put(freq, s);
+        }
+        s.add(key);
+    }
+
+    private void unlink(UInt128 key, int freq) {
+        LinkedHashSet<UInt128> s = byFreq.get(freq);
+        s.remove(key);
+        if (s.isEmpty()) {
+            byFreq.remove(freq);
+        }
+    }
+
+    @Override
+    protected Object lookup(UInt128 key) {
+        Entry e = entries.get(key);
+        if (e == null) {
+            return null;
+        }
+        unlink(key, e.freq);
+        e.freq++;
+        link(key, e.freq);
+        return e.value;
+    }
+
+    @Override
+    protected void insert(UInt128 key, Object value, int size) {
+        if (size > capacity) {
+            return;
+        }
+        Entry old = entries.remove(key);
+        if (old != null) {
+            unlink(key, old.freq);
+            bytes -= old.size;
+        }
+        while (bytes + size > capacity && !byFreq.isEmpty()) {
+            Map.Entry<Integer, LinkedHashSet<UInt128>> least = byFreq.firstEntry();
+            Iterator<UInt128> it = least.getValue().iterator();
+            UInt128 victim = it.next();
+            it.remove();
+            if (least.getValue().isEmpty()) {
+                byFreq.remove(least.getKey());
+            }
+            bytes -= entries.remove(victim).size;
+            stats.evictions++;
+        }
+        Entry e = new Entry(value, size);
+        if (old != null) {
+            e.freq = old.freq;
+        }
+        entries.put(key, e);
+        link(key, e.freq);
+        bytes += size;
+    }
+}
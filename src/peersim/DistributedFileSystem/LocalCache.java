@@ -0,0 +1,94 @@
+package peersim.DistributedFileSystem;
+
+import peersim.core.CommonState;
+import peersim.pastry.UInt128;
+
+/*
+    Cache local del nodo que pide archivos: guarda los trozos (tal como
+    llegan en los resultados) y los manifests que recibio, para no volver
+    a pedirlos por la red. La capacidad es en bytes y cada entrada tiene el
+    tamaño que indica put(). La politica de reemplazo la da la subclase:
+    LRU, LFU o W-TinyLFU (ver create()). Con ttl > 0 una entrada vence
+    ttl unidades de tiempo despues de guardarse y desde ahi cuenta como falla.
+*/
+public abstract class LocalCache {
+
+    /*estadisticas, compartidas por los caches de un mismo tipo de todos los nodos*/
+    public static class Stats {
+        public long hits = 0;
+        public long misses = 0;
+        public long evictions = 0;
+
+        public double hitRatio() {
+            return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+        }
+    }
+
+    private static class Timed {
+        final Object value;
+        final long expires;
+
+        Timed(Object value, long expires) {
+            this.value = value;
+            this.expires = expires;
+        }
+    }
+
+    protected final long capacity;
+    protected final Stats stats;
+    private long ttl = 0;
+    protected long bytes = 0;
+
+    protected LocalCache(long capacity, Stats stats) {
+        this.capacity = capacity;
+        this.stats = stats;
+    }
+
+    /*
+        policy: "lru" (por defecto), "lfu" o "tinylfu"
+    */
+    public static LocalCache create(String policy, long capacity, Stats stats) {
+        if (policy.equals("lfu")) {
+            return new LfuCache(capacity, stats);
+        }
+        if (policy.equals("tinylfu")) {
+            return new TinyLfuCache(capacity, stats);
+        }
+        return new LruCache(capacity, stats);
+    }
+
+    public void setTtl(long ttl) {
+        this.ttl = ttl;
+    }
+
+    /*valor guardado bajo la llave o null, cuenta el acierto o la falla*/
+    public final Object get(UInt128 key) {
+        Object value = lookup(key);
+        if (value instanceof Timed) {
+            Timed t = (Timed) value;
+            value = t.expires > CommonState.getTime() ? t.value : null;
+        }
+        if (value == null) {
+            stats.misses++;
+        } else {
+            stats.hits++;
+        }
+        return value;
+    }
+
+    /*
+        Guarda el valor (de size bytes), sacando las entradas que indique la
+        politica hasta que quepa. Un valor mas grande que la capacidad no se guarda.
+    */
+    public final void put(UInt128 key, Object value, int size) {
+        insert(key, ttl > 0 ? new Timed(value, CommonState.getTime() + ttl) : value, size);
+    }
+
+    protected abstract void insert(UInt128 key, Object value, int size);
+
+    protected abstract Object lookup(UInt128 key);
+
+    public long bytes() {
+        return bytes;
+    }
+}
@@ -0,0 +1,53 @@
+package peersim.DistributedFileSystem;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import peersim.pastry.UInt128;
+
+/*
+    LocalCache que saca la entrada usada hace mas tiempo
+*/
+public class LruCache extends LocalCache {
+
+    private static class Entry {
+        final Object value;
+        final int size;
+
+        Entry(Object value, int size) {
+            this.value = value;
+            this.size = size;
+        }
+    }
+
+    private final LinkedHashMap<UInt128, Entry> entries = new LinkedHashMap<UInt128, Entry>(16, 0.75f, true);
+
+    public LruCache(long capacity, Stats stats) {
+        super(capacity, stats);
+    }
+
+    @Override
+    protected Object lookup(UInt128 key) {
+        Entry e = entries.get(key);
+        return e == null ? null : e.value;
+    }
+
+    @Override
+    protected void insert(UInt128 key, Object value, int size) {
+        if (size > capacity) {
+            return;
+        }
+        Entry old = entries.remove(key);
+        if (old != null) {
+            bytes -= old.size;
+        }
+        Iterator<Map.Entry<UInt128, Entry>> it = entries.entrySet().iterator();
+        while (bytes + size > capacity && it.hasNext()) {
+            bytes -= it.next().getValue().size;
+            it.remove();
+            stats.evictions++;
+        }
+        entries.put(key, new Entry(value, size));
+        bytes += size;
+    }
+}
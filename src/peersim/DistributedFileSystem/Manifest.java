@@ -0,0 +1,53 @@
+package peersim.DistributedFileSystem;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import peersim.pastry.UInt128;
+
+/*
+    Manifest de un archivo: las llaves de sus trozos en orden (con codigo de
+    borrado k+m por grupo, null para los fragmentos de datos vacios del ultimo
+    grupo) y el largo original de cada trozo de datos. Con los largos el nodo
+    que pide el archivo conoce el offset de cada trozo y el largo del archivo
+    antes de recibirlos, y puede escribir cada trozo en su lugar apenas llega.
+*/
+public class Manifest {
+
+    public final List<UInt128> keys = new ArrayList<>();
+    //offsets[i] es el offset del trozo de datos i, offsets[chunks] el largo del archivo
+    private long[] offsets = new long[16];
+    private int chunks = 0;
+
+    /*agrega el largo (sin comprimir) del siguiente trozo de datos*/
+    void addChunk(int length) {
+        if (chunks + 1 == offsets.length) {
+            offsets = Arrays.copyOf(offsets, offsets.length * 2);
+        }
+        offsets[chunks + 1] = offsets[chunks] + length;
+        chunks++;
+    }
+
+    /*número de trozos de datos (sin paridad)*/
+    public int chunkCount() {
+        return chunks;
+    }
+
+    public long offset(int chunk) {
+        return offsets[chunk];
+    }
+
+    public int length(int chunk) {
+        return (int) (offsets[chunk + 1] - offsets[chunk]);
+    }
+
+    /*largo del archivo*/
+    public long size() {
+        return offsets[chunks];
+    }
+
+    /*bytes aproximados que ocupa el manifest (para el cache local)*/
+    public int bytes() {
+        return 16 * (keys.size() + 1) + 8 * chunks;
+    }
+}
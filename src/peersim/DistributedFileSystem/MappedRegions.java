@@ -0,0 +1,147 @@
+package peersim.DistributedFileSystem;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+    Cache, compartido por todos los nodos, de ventanas de los archivos de
+    trozos o segmentos mapeadas en memoria (solo lectura). Una lectura mapea
+    la ventana alineada de window bytes que contiene el trozo pedido (o
+    hasta el final del trozo si cruza el borde de la ventana), no el archivo
+    entero: un segmento de 64 MB no ocupa el cache por un solo trozo, y
+    caben las ventanas que se leen de muchos nodos. Las lecturas devuelven
+    slices de solo lectura del mapeo, sin copiar bytes. El total de bytes
+    mapeados se limita a capacity: al pasarse se sacan las ventanas usadas
+    hace mas tiempo (LRU). Java no permite desmapear explicitamente sin
+    riesgo (un slice puede seguir viajando en un mensaje), asi que un mapeo
+    sacado del cache se libera cuando el GC recolecta su ultimo slice.
+*/
+public class MappedRegions {
+
+    /*ventana de un archivo: el archivo y el offset donde empieza*/
+    private static final class Region {
+        final File file;
+        final long start;
+
+        Region(File file, long start) {
+            this.file = file;
+            this.start = start;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Region)) {
+                return false;
+            }
+            Region r = (Region) o;
+            return start == r.start && file.equals(r.file);
+        }
+
+        @Override
+        public int hashCode() {
+            return file.hashCode() * 31 + Long.hashCode(start);
+        }
+    }
+
+    private static long capacity = 256L * 1024 * 1024;
+    private static long window = 1024 * 1024;
+    private static long mapped = 0;
+    private static final LinkedHashMap<Region, MappedByteBuffer> regions =
+            new LinkedHashMap<Region, MappedByteBuffer>(16, 0.75f, true);
+
+    //estadisticas: lecturas servidas por una ventana ya mapeada, ventanas
+    //mapeadas (por primera vez o de nuevo) y ventanas sacadas del cache
+    public static long hits = 0;
+    public static long maps = 0;
+    public static long evictions = 0;
+
+    private MappedRegions() {
+    }
+
+    /*fija el máximo de bytes mapeados a la vez*/
+    public static void setCapacity(long bytes) {
+        capacity = bytes;
+        evict(null);
+    }
+
+    /*fija el largo de las ventanas que se mapean*/
+    public static void setWindow(long bytes) {
+        window = bytes;
+    }
+
+    public static long mappedBytes() {
+        return mapped;
+    }
+
+    /*fraccion de las lecturas que tuvieron que mapear una ventana*/
+    public static double remapRate() {
+        return hits + maps == 0 ? 0 : (double) maps / (hits + maps);
+    }
+
+    /*
+        Devuelve un slice de solo lectura de los bytes [offset, offset+length)
+        del archivo f, cuyo canal abierto es ch. Si la ventana que hay en el
+        cache no alcanza a cubrirlos (el archivo crecio) se vuelve a mapear.
+    */
+    public static ByteBuffer slice(File f, FileChannel ch, long offset, int length) throws IOException {
+        long start = offset - offset % window;
+        Region r = new Region(f, start);
+        MappedByteBuffer m = regions.get(r);
+        if (m == null || offset + length > start + m.capacity()) {
+            if (m != null) {
+                regions.remove(r);
+                mapped -= m.capacity();
+            }
+            long size = ch.size();
+            if (offset + length > size) {
+                throw new IOException("region outside of " + f);
+            }
+            long end = Math.min(size, Math.max(start + window, offset + length));
+            m = ch.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+            maps++;
+            regions.put(r, m);
+            mapped += end - start;
+            evict(r);
+        } else {
+            hits++;
+        }
+        ByteBuffer b = m.duplicate();
+        b.position((int) (offset - start));
+        b.limit((int) (offset - start) + length);
+        return b.slice().asReadOnlyBuffer();
+    }
+
+    /*
+        Saca las ventanas del archivo del cache, se debe llamar antes de
+        truncarlo o reemplazarlo.
+    */
+    public static void invalidate(File f) {
+        Iterator<Map.Entry<Region, MappedByteBuffer>> it = regions.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Region, MappedByteBuffer> e = it.next();
+            if (e.getKey().file.equals(f)) {
+                mapped -= e.getValue().capacity();
+                it.remove();
+            }
+        }
+    }
+
+    private static void evict(Region keep) {
+        Iterator<Map.Entry<Region, MappedByteBuffer>> it = regions.entrySet().iterator();
+        while (mapped > capacity && it.hasNext()) {
+            Map.Entry<Region, MappedByteBuffer> e = it.next();
+            if (e.getKey().equals(keep)) {
+                continue;
+            }
+            mapped -= e.getValue().capacity();
+            it.remove();
+            evictions++;
+        }
+    }
+}
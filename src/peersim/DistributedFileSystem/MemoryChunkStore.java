@@ -0,0 +1,93 @@
+package peersim.DistributedFileSystem;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import peersim.pastry.UInt128;
+
+/*
+    ChunkStore en memoria, sin disco: cada trozo se copia a un bloque del
+    SlabArena (fuera del heap). El store lleva la cuenta de los trozos y
+    bytes de su nodo, y close() devuelve todos sus bloques al arena (lo
+    llama el DFS cuando Turbulence saca el nodo de la red).
+    get() copia el trozo a un buffer nuevo: el bloque puede liberarse y
+    reusarse mientras el resultado viaja en un mensaje.
+*/
+public class MemoryChunkStore implements ChunkStore {
+
+    private final Map<UInt128, Long> blocks = new HashMap<>();
+    private final Map<UInt128, Integer> lengths = new HashMap<>();
+    private long bytes = 0;
+    private long reserved = 0;
+
+    @Override
+    public void put(UInt128 key, ByteBuffer data) {
+        ByteBuffer src = data.duplicate();
+        int length = src.remaining();
+        remove(key);
+        long block = SlabArena.allocate(Math.max(length, 1));
+        ByteBuffer b = SlabArena.buffer(block);
+        b.put(src);
+        blocks.put(key, block);
+        lengths.put(key, length);
+        bytes += length;
+        reserved += SlabArena.blockSize(block);
+    }
+
+    @Override
+    public ByteBuffer get(UInt128 key) {
+        Long block = blocks.get(key);
+        if (block == null) {
+            return null;
+        }
+        ByteBuffer b = SlabArena.buffer(block);
+        b.limit(lengths.get(key));
+        ByteBuffer chunk = ByteBuffer.allocate(b.remaining());
+        chunk.put(b);
+        chunk.flip();
+        return chunk;
+    }
+
+    /*saca el trozo y devuelve su bloque al arena*/
+    public boolean remove(UInt128 key) {
+        Long block = blocks.remove(key);
+        if (block == null) {
+            return false;
+        }
+        bytes -= lengths.remove(key);
+        reserved -= SlabArena.blockSize(block);
+        SlabArena.free(block);
+        return true;
+    }
+
+    @Override
+    public boolean contains(UInt128 key) {
+        return blocks.containsKey(key);
+    }
+
+    @Override
+    public int size() {
+        return blocks.size();
+    }
+
+    @Override
+    public long bytes() {
+        return bytes;
+    }
+
+    /*bytes de los bloques del arena ocupados por este nodo*/
+    public long reservedBytes() {
+        return reserved;
+    }
+
+    @Override
+    public void close() {
+        for (long block : blocks.values()) {
+            SlabArena.free(block);
+        }
+        blocks.clear();
+        lengths.clear();
+        bytes = 0;
+        reserved = 0;
+    }
+}
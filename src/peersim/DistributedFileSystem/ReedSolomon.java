@@ -0,0 +1,173 @@
+package peersim.DistributedFileSystem;
+
+import java.util.Arrays;
+
+/*
+    Codigo Reed-Solomon sistematico sobre GF(2^8): k fragmentos de datos
+    mas m de paridad, y con cualesquiera k de los k+m se recuperan los datos.
+    La paridad i es la fila i de una matriz de Cauchy, 1/(x_i + y_j) con
+    x_i = k+i e y_j = j: toda submatriz cuadrada de [I; C] es invertible,
+    que es lo que permite decodificar desde cualquier subconjunto de k.
+    Todos los fragmentos de un grupo deben tener el mismo largo.
+*/
+public class ReedSolomon {
+
+    private static final int[] EXP = new int[512];
+    private static final int[] LOG = new int[256];
+    //MUL[a][b] = a*b en GF(2^8)
+    private static final byte[][] MUL = new byte[256][256];
+
+    static {
+        int x = 1;
+        for (int i = 0; i < 255; i++) {
+            EXP[i] = x;
+            LOG[x] = i;
+            x <<= 1;
+            if ((x & 0x100) != 0) {
+                x ^= 0x11d;
+            }
+        }
+        for (int i = 255; i < EXP.length; i++) {
+            EXP[i] = EXP[i - 255];
+        }
+        for (int a = 1; a < 256; a++) {
+            for (int b = 1; b < 256; b++) {
+                MUL[a][b] = (byte) EXP[LOG[a] + LOG[b]];
+            }
+        }
+    }
+
+    private final int k;
+    private final int m;
+    //filas de paridad, m x k
+    private final int[][] parity;
+
+    public ReedSolomon(int k, int m) {
+        if (k < 1 || m < 0 || k + m > 256) {
+            throw new IllegalArgumentException("need 0 < k and k + m <= 256");
+        }
+        this.k = k;
+        this.m = m;
+        parity = new int[m][k];
+        for (int i = 0; i < m; i++) {
+            for (int j = 0; j < k; j++) {
+                parity[i][j] = inverse((k + i) ^ j);
+            }
+        }
+    }
+
+    public int dataShards() {
+        return k;
+    }
+
+    public int parityShards() {
+        return m;
+    }
+
+    private static int inverse(int a) {
+        return EXP[255 - LOG[a]];
+    }
+
+    /*
+        Calcula shards[k..k+m) a partir de shards[0..k), length bytes de cada uno
+    */
+    public void encode(byte[][] shards, int length) {
+        for (int i = 0; i < m; i++) {
+            combine(parity[i], shards, shards[k + i], length);
+        }
+    }
+
+    /*
+        out = suma de coef[j] * in[j], j < k
+    */
+    private static void combine(int[] coef, byte[][] in, byte[] out, int length) {
+        Arrays.fill(out, 0, length, (byte) 0);
+        for (int j = 0; j < coef.length; j++) {
+            if (coef[j] == 0) {
+                continue;
+            }
+            byte[] mul = MUL[coef[j]];
+            byte[] src = in[j];
+            for (int b = 0; b < length; b++) {
+                out[b] ^= mul[src[b] & 0xff];
+            }
+        }
+    }
+
+    /*
+        Reconstruye los fragmentos de datos que faltan (present[i] false)
+        usando k de los presentes. Devuelve false si hay menos de k.
+        Los fragmentos que faltan deben venir con arreglos de length bytes.
+    */
+    public boolean decode(byte[][] shards, boolean[] present, int length) {
+        int[] rows = new int[k];
+        int n = 0;
+        for (int i = 0; i < k + m && n < k; i++) {
+            if (present[i]) {
+                rows[n++] = i;
+            }
+        }
+        if (n < k) {
+            return false;
+        }
+        boolean missing = false;
+        for (int j = 0; j < k; j++) {
+            missing |= !present[j];
+        }
+        if (!missing) {
+            return true;
+        }
+        //matriz de los fragmentos elegidos (filas de [I; C]) y su inversa
+        int[][] a = new int[k][2 * k];
+        for (int r = 0; r < k; r++) {
+            if (rows[r] < k) {
+                a[r][rows[r]] = 1;
+            } else {
+                System.arraycopy(parity[rows[r] - k], 0, a[r], 0, k);
+            }
+            a[r][k + r] = 1;
+        }
+        invert(a);
+        byte[][] in = new byte[k][];
+        for (int r = 0; r < k; r++) {
+            in[r] = shards[rows[r]];
+        }
+        int[] coef = new int[k];
+        for (int j = 0; j < k; j++) {
+            if (present[j]) {
+                continue;
+            }
+            System.arraycopy(a[j], k, coef, 0, k);
+            combine(coef, in, shards[j], length);
+        }
+        return true;
+    }
+
+    /*
+        Gauss-Jordan sobre [A | I], deja [I | A^-1]
+    */
+    private void invert(int[][] a) {
+        for (int c = 0; c < k; c++) {
+            int p = c;
+            while (a[p][c] == 0) {
+                p++;
+            }
+            int[] t = a[p];
+            a[p] = a[c];
+            a[c] = t;
+            int inv = inverse(a[c][c]);
+            for (int j = 0; j < 2 * k; j++) {
+                a[c][j] = MUL[inv][a[c][j]] & 0xff;
+            }
+            for (int r = 0; r < k; r++) {
+                int f = a[r][c];
+                if (r == c || f == 0) {
+                    continue;
+                }
+                for (int j = 0; j < 2 * k; j++) {
+                    a[r][j] ^= MUL[f][a[c][j]] & 0xff;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,303 @@
+package peersim.DistributedFileSystem;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import peersim.pastry.UInt128;
+
+/*
+    ChunkStore de segmentos de solo agregado: los trozos de un nodo se
+    agregan al final de archivos grandes <dir>/<nombre>-NNNNN.seg en vez de
+    crear un archivo por trozo. Formato de un segmento:
+
+        registro*  indice  cola
+
+    registro: llave (16 bytes) + largo (4) + bytes del trozo
+    indice:   por registro, llave (16) + offset del registro (4) + largo (4)
+    cola:     número de entradas del indice (4) + offset del indice (4) + MAGIC (8)
+
+    El indice y la cola se escriben cuando el segmento se cierra (lleno o
+    close()), asi al partir basta leer el final de cada segmento para
+    reconstruir el indice en memoria llave -> (segmento, offset, largo).
+    Un segmento sin cola (el activo de una corrida que no cerro) se recorre
+    registro por registro y se sigue agregando despues del ultimo completo.
+    Un put de una llave que ya estaba agrega un registro nuevo, el indice
+    apunta al ultimo (no hay compactacion). Cada lectura es un solo read
+    posicional del canal del segmento o, en modo mmap, un slice de solo
+    lectura del segmento mapeado (ver MappedRegions): los registros nunca
+    se modifican, asi que un slice sigue siendo valido aunque el segmento crezca.
+*/
+public class SegmentChunkStore implements ChunkStore {
+
+    private static final long MAGIC = 0x50415354_53454731L; // "PASTSEG1"
+    private static final int RECORD_HEADER = 16 + 4;
+    private static final int INDEX_ENTRY = 16 + 4 + 4;
+    private static final int TRAILER = 4 + 4 + 8;
+
+    //la ubicacion de un trozo se empaqueta en un long: segmento | offset | largo
+    private static final int SEG_BITS = 10, OFF_BITS = 30, LEN_BITS = 24;
+    public static final long MAX_SEGMENT_SIZE = 1L << OFF_BITS;
+    public static final int MAX_CHUNK_SIZE = (1 << LEN_BITS) - 1;
+
+    private final File dir;
+    private final String name;
+    private final long segmentSize;
+    private final boolean mmap;
+
+    private final Map<UInt128, Long> index = new HashMap<>();
+    private final List<FileChannel> segments = new ArrayList<>();
+    private long bytes = 0;
+
+    //segmento activo (el ultimo), -1 si hay que abrir uno nuevo
+    private int active = -1;
+    private long tail;
+    //registros del segmento activo, para escribir su indice al cerrarlo
+    private final List<UInt128> activeKeys = new ArrayList<>();
+    private int[] activeOffsets = new int[64];
+    private int[] activeLengths = new int[64];
+
+    private final ByteBuffer header = ByteBuffer.allocateDirect(RECORD_HEADER);
+
+    public SegmentChunkStore(File dir, String name, long segmentSize) throws IOException {
+        this(dir, name, segmentSize, false);
+    }
+
+    /*
+        mmap: si es true las lecturas devuelven slices de los segmentos mapeados
+    */
+    public SegmentChunkStore(File dir, String name, long segmentSize, boolean mmap) throws IOException {
+        if (segmentSize <= RECORD_HEADER + TRAILER || segmentSize > MAX_SEGMENT_SIZE) {
+            throw new IllegalArgumentException("segment size must be at most " + MAX_SEGMENT_SIZE);
+        }
+        this.dir = dir;
+        this.name = name;
+        this.segmentSize = segmentSize;
+        this.mmap = mmap;
+        rebuild();
+    }
+
+    private File segmentFile(int n) {
+        return new File(dir, String.format("%s-%05d.seg", name, n));
+    }
+
+    private static long pack(int segment, long offset, int length) {
+        return ((long) segment << (OFF_BITS + LEN_BITS)) | (offset << LEN_BITS) | length;
+    }
+
+    private static int segmentOf(long loc) {
+        return (int) (loc >>> (OFF_BITS + LEN_BITS));
+    }
+
+    private static long offsetOf(long loc) {
+        return (loc >>> LEN_BITS) & ((1L << OFF_BITS) - 1);
+    }
+
+    private static int lengthOf(long loc) {
+        return (int) (loc & ((1L << LEN_BITS) - 1));
+    }
+
+    /*
+        Reconstruye el indice leyendo el indice del final de cada segmento
+        existente, o recorriendo sus registros si el segmento no se cerro.
+    */
+    private void rebuild() throws IOException {
+        for (int n = 0; n < (1 << SEG_BITS); n++) {
+            File f = segmentFile(n);
+            if (!f.exists()) {
+                break;
+            }
+            FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            segments.add(ch);
+            if (!readIndex(n, ch)) {
+                MappedRegions.invalidate(f);
+                seal();
+                long end = scan(n, ch);
+                ch.truncate(end);
+                active = n;
+                tail = end;
+            }
+        }
+    }
+
+    private static void readFully(FileChannel ch, ByteBuffer b, long pos) throws IOException {
+        while (b.hasRemaining()) {
+            int r = ch.read(b, pos);
+            if (r < 0) {
+                throw new IOException("unexpected end of segment");
+            }
+            pos += r;
+        }
+        b.flip();
+    }
+
+    private boolean readIndex(int n, FileChannel ch) throws IOException {
+        long size = ch.size();
+        if (size < TRAILER) {
+            return false;
+        }
+        ByteBuffer t = ByteBuffer.allocate(TRAILER);
+        readFully(ch, t, size - TRAILER);
+        int count = t.getInt();
+        long start = t.getInt() & 0xffffffffL;
+        if (t.getLong() != MAGIC || count < 0 || start + (long) count * INDEX_ENTRY + TRAILER != size) {
+            return false;
+        }
+        ByteBuffer idx = ByteBuffer.allocate(count * INDEX_ENTRY);
+        readFully(ch, idx, start);
+        for (int i = 0; i < count; i++) {
+            UInt128 key = new UInt128(idx.getLong(), idx.getLong());
+            long offset = idx.getInt() & 0xffffffffL;
+            int length = idx.getInt();
+            index(key, pack(n, offset, length));
+        }
+        return true;
+    }
+
+    private long scan(int n, FileChannel ch) throws IOException {
+        long size = ch.size();
+        long pos = 0;
+        ByteBuffer h = ByteBuffer.allocate(RECORD_HEADER);
+        while (pos + RECORD_HEADER <= size) {
+            h.clear();
+            readFully(ch, h, pos);
+            UInt128 key = new UInt128(h.getLong(), h.getLong());
+            int length = h.getInt();
+            if (length < 0 || length > MAX_CHUNK_SIZE || pos + RECORD_HEADER + length > size) {
+                break;
+            }
+            index(key, pack(n, pos, length));
+            addActive(key, pos, length);
+            pos += RECORD_HEADER + length;
+        }
+        return pos;
+    }
+
+    private void index(UInt128 key, long loc) {
+        Long old = index.put(key, loc);
+        bytes += lengthOf(loc) - (old == null ? 0 : lengthOf(old));
+    }
+
+    private void addActive(UInt128 key, long offset, int length) {
+        int i = activeKeys.size();
+        if (i == activeOffsets.length) {
+            activeOffsets = Arrays.copyOf(activeOffsets, i * 2);
+            activeLengths = Arrays.copyOf(activeLengths, i * 2);
+        }
+        activeKeys.add(key);
+        activeOffsets[i] = (int) offset;
+        activeLengths[i] = length;
+    }
+
+    /*
+        Escribe el indice y la cola del segmento activo, que queda de solo lectura.
+    */
+    private void seal() throws IOException {
+        if (active < 0) {
+            return;
+        }
+        int count = activeKeys.size();
+        ByteBuffer idx = ByteBuffer.allocate(count * INDEX_ENTRY + TRAILER);
+        for (int i = 0; i < count; i++) {
+            UInt128 key = activeKeys.get(i);
+            idx.putLong(key.hi).putLong(key.lo).putInt(activeOffsets[i]).putInt(activeLengths[i]);
+        }
+        idx.putInt(count).putInt((int) tail).putLong(MAGIC);
+        idx.flip();
+        FileChannel ch = segments.get(active);
+        while (idx.hasRemaining()) {
+            tail += ch.write(idx, tail);
+        }
+        activeKeys.clear();
+        active = -1;
+    }
+
+    private void roll() throws IOException {
+        seal();
+        int n = segments.size();
+        if (n == (1 << SEG_BITS)) {
+            throw new IOException("too many segments in " + dir);
+        }
+        dir.mkdirs();
+        MappedRegions.invalidate(segmentFile(n));
+        segments.add(FileChannel.open(segmentFile(n).toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING));
+        active = n;
+        tail = 0;
+    }
+
+    @Override
+    public void put(UInt128 key, ByteBuffer data) throws IOException {
+        ByteBuffer src = data.duplicate();
+        int length = src.remaining();
+        if (length > MAX_CHUNK_SIZE) {
+            throw new IOException("chunk of " + length + " bytes is too big for a segment");
+        }
+        long need = RECORD_HEADER + length + (long) (activeKeys.size() + 1) * INDEX_ENTRY + TRAILER;
+        if (active < 0 || (tail > 0 && tail + need > segmentSize)) {
+            roll();
+        }
+        header.clear();
+        header.putLong(key.hi).putLong(key.lo).putInt(length);
+        header.flip();
+        FileChannel ch = segments.get(active);
+        long offset = tail;
+        long pos = tail;
+        while (header.hasRemaining()) {
+            pos += ch.write(header, pos);
+        }
+        while (src.hasRemaining()) {
+            pos += ch.write(src, pos);
+        }
+        tail = pos;
+        addActive(key, offset, length);
+        index(key, pack(active, offset, length));
+    }
+
+    @Override
+    public ByteBuffer get(UInt128 key) throws IOException {
+        Long loc = index.get(key);
+        if (loc == null) {
+            return null;
+        }
+        int n = segmentOf(loc);
+        if (mmap) {
+            return MappedRegions.slice(segmentFile(n), segments.get(n), offsetOf(loc) + RECORD_HEADER, lengthOf(loc));
+        }
+        ByteBuffer chunk = ByteBuffer.allocate(lengthOf(loc));
+        readFully(segments.get(n), chunk, offsetOf(loc) + RECORD_HEADER);
+        return chunk;
+    }
+
+    @Override
+    public boolean contains(UInt128 key) {
+        return index.containsKey(key);
+    }
+
+    @Override
+    public int size() {
+        return index.size();
+    }
+
+    @Override
+    public long bytes() {
+        return bytes;
+    }
+
+    @Override
+    public void close() throws IOException {
+        seal();
+        for (FileChannel ch : segments) {
+            ch.close();
+        }
+        segments.clear();
+        index.clear();
+        bytes = 0;
+    }
+}
@@ -0,0 +1,117 @@
+package peersim.DistributedFileSystem;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+    Memoria fuera del heap para los trozos de MemoryChunkStore, compartida
+    por todos los nodos. Se piden al sistema slabs grandes (ByteBuffer
+    directos de slabSize bytes) que se parten en bloques de tamaño potencia
+    de 2 (desde 1 KB hasta el slab completo). Cada tamaño tiene su lista de
+    bloques libres: un bloque liberado se reusa para el proximo trozo de su
+    tamaño, los slabs no se devuelven al sistema. Asi los trozos guardados
+    no son objetos del heap y el GC no los recorre ni los copia.
+
+    Un bloque se identifica por un long: slab (24 bits) | tamaño (8) | offset (32).
+*/
+public class SlabArena {
+
+    private static final int MIN_SHIFT = 10;
+
+    private static int slabSize = 64 * 1024 * 1024;
+    private static final List<ByteBuffer> slabs = new ArrayList<ByteBuffer>();
+    //primer byte sin usar del ultimo slab
+    private static int bump = 0;
+
+    //bloques libres de cada tamaño (indice = log2 del tamaño)
+    private static final long[][] free = new long[32][];
+    private static final int[] freeCount = new int[32];
+
+    //bytes de los bloques entregados
+    private static long used = 0;
+
+    private SlabArena() {
+    }
+
+    /*
+        fija el tamaño de los slabs (potencia de 2), solo antes de la primera asignación
+    */
+    public static void setSlabSize(int bytes) {
+        if (!slabs.isEmpty()) {
+            return;
+        }
+        slabSize = Integer.highestOneBit(Math.max(bytes, 1 << MIN_SHIFT));
+    }
+
+    public static int maxBlock() {
+        return slabSize;
+    }
+
+    /*log2 del menor bloque donde caben size bytes*/
+    private static int shift(int size) {
+        return Math.max(MIN_SHIFT, 32 - Integer.numberOfLeadingZeros(size - 1));
+    }
+
+    public static int blockSize(long block) {
+        return 1 << (int) ((block >>> 32) & 0xff);
+    }
+
+    /*
+        Entrega un bloque de al menos size bytes (size <= maxBlock())
+    */
+    public static long allocate(int size) {
+        if (size > slabSize) {
+            throw new IllegalArgumentException(size + " bytes do not fit in a slab of " + slabSize);
+        }
+        int c = shift(size);
+        long block;
+        if (freeCount[c] > 0) {
+            block = free[c][--freeCount[c]];
+        } else {
+            int bs = 1 << c;
+            if (slabs.isEmpty() || bump > slabSize - bs) {
+                slabs.add(ByteBuffer.allocateDirect(slabSize));
+                bump = 0;
+            }
+            block = ((long) (slabs.size() - 1) << 40) | ((long) c << 32) | bump;
+            bump += bs;
+        }
+        used += 1 << c;
+        return block;
+    }
+
+    public static void free(long block) {
+        int c = (int) ((block >>> 32) & 0xff);
+        if (free[c] == null) {
+            free[c] = new long[64];
+        } else if (freeCount[c] == free[c].length) {
+            free[c] = Arrays.copyOf(free[c], freeCount[c] * 2);
+        }
+        free[c][freeCount[c]++] = block;
+        used -= 1 << c;
+    }
+
+    /*
+        Vista del bloque (position 0, limit = tamaño del bloque) que comparte
+        la memoria del slab
+    */
+    public static ByteBuffer buffer(long block) {
+        ByteBuffer b = slabs.get((int) (block >>> 40)).duplicate();
+        int offset = (int) block;
+        b.position(offset);
+        b.limit(offset + blockSize(block));
+        return b.slice();
+    }
+
+    /*bytes de los bloques en uso*/
+    public static long usedBytes() {
+        return used;
+    }
+
+    /*bytes pedidos al sistema*/
+    public static long reservedBytes() {
+        return (long) slabs.size() * slabSize;
+    }
+}
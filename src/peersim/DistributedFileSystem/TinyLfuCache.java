@@ -0,0 +1,171 @@
+package peersim.DistributedFileSystem;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import peersim.pastry.UInt128;
+
+/*
+    LocalCache W-TinyLFU: las entradas nuevas entran a una ventana LRU
+    pequeña (1% de la capacidad). Lo que sale de la ventana solo entra a la
+    zona principal si se ha pedido mas veces que la victima que sacaria,
+    segun un count-min sketch de las frecuencias recientes de todas las
+    llaves (tambien de las que no estan). La zona principal es un LRU
+    segmentado: las entradas entran a probation y pasan a protected (80%
+    de la zona) al segundo acceso. Cada 10 accesos por entrada del cache
+    los contadores del sketch se dividen por 2, asi las frecuencias viejas
+    pierden peso.
+*/
+public class TinyLfuCache extends LocalCache {
+
+    private static class Entry {
+        final Object value;
+        final int size;
+
+        Entry(Object value, int size) {
+            this.value = value;
+            this.size = size;
+        }
+    }
+
+    private final LinkedHashMap<UInt128, Entry> window = new LinkedHashMap<UInt128, Entry>(16, 0.75f, true);
+    private final LinkedHashMap<UInt128, Entry> probation = new LinkedHashMap<UInt128, Entry>(16, 0.75f, true);
+    private final LinkedHashMap<UInt128, Entry> protectedZone = new LinkedHashMap<UInt128, Entry>(16, 0.75f, true);
+    private final long windowCapacity;
+    private final long protectedCapacity;
+    private long windowBytes = 0, protectedBytes = 0;
+
+    //count-min sketch: 4 filas de contadores
+    private static final int ROWS = 4;
+    private final int[][] sketch;
+    private final int mask;
+    private int additions = 0;
+
+    public TinyLfuCache(long capacity, Stats stats) {
+        super(capacity, stats);
+        windowCapacity = Math.max(1, capacity / 100);
+        protectedCapacity = (capacity - windowCapacity) * 8 / 10;
+        sketch = new int[ROWS][1024];
+        mask = 1023;
+    }
+
+    private int index(UInt128 key, int row) {
+        long h = (key.hi ^ key.lo) * (0x9E3779B97F4A7C15L + 2 * row);
+        return (int) (h >>> 40) & mask;
+    }
+
+    private void increment(UInt128 key) {
+        for (int r = 0; r < ROWS; r++) {
+            sketch[r][index(key, r)]++;
+        }
+        int entries = window.size() + probation.size() + protectedZone.size();
+        if (++additions >= 10 * Math.max(entries, 64)) {
+            for (int[] row : sketch) {
+                for (int i = 0; i < row.length; i++) {
+                    row[i] >>>= 1;
+                }
+            }
+            additions = 0;
+        }
+    }
+
+    private int frequency(UInt128 key) {
+        int f = Integer.MAX_VALUE;
+        for (int r = 0; r < ROWS; r++) {
+            f = Math.min(f, sketch[r][index(key, r)]);
+        }
+        return f;
+    }
+
+    @Override
+    protected Object lookup(UInt128 key) {
+        increment(key);
+        Entry e = window.get(key);
+        if (e == null) {
+            e = protectedZone.get(key);
+        }
+        if (e == null) {
+            e = probation.remove(key);
+            if (e != null) {
+                //segundo acceso: pasa a protected, que si se llena devuelve su LRU a probation
+                protectedZone.put(key, e);
+                protectedBytes += e.size;
+                Iterator<Map.Entry<UInt128, Entry>> it = protectedZone.entrySet().iterator();
+                while (protectedBytes > protectedCapacity && it.hasNext()) {
+                    Map.Entry<UInt128, Entry> d = it.next();
+                    if (d.getKey().equals(key)) {
+                        continue;
+                    }
+                    it.remove();
+                    protectedBytes -= d.getValue().size;
+                    probation.put(d.getKey(), d.getValue());
+                }
+            }
+        }
+        return e == null ? null : e.value;
+    }
+
+    private Entry remove(UInt128 key) {
+        Entry e = window.remove(key);
+        if (e != null) {
+            windowBytes -= e.size;
+        } else if ((e = protectedZone.remove(key)) != null) {
+            protectedBytes -= e.size;
+        } else {
+            e = probation.remove(key);
+        }
+        if (e != null) {
+            bytes -= e.size;
+        }
+        return e;
+    }
+
+    @Override
+    protected void insert(UInt128 key, Object value, int size) {
+        if (size > capacity) {
+            return;
+        }
+        remove(key);
+        increment(key);
+        window.put(key, new Entry(value, size));
+        windowBytes += size;
+        bytes += size;
+        Iterator<Map.Entry<UInt128, Entry>> it = window.entrySet().iterator();
+        while (windowBytes > windowCapacity && window.size() > 1) {
+            Map.Entry<UInt128, Entry> c = it.next();
+            it.remove();
+            windowBytes -= c.getValue().size;
+            admit(c.getKey(), c.getValue());
+        }
+        //la ventana sola puede pasarse de la capacidad total si tiene una entrada grande
+        while (bytes > capacity && !window.isEmpty()) {
+            Map.Entry<UInt128, Entry> c = window.entrySet().iterator().next();
+            remove(c.getKey());
+            stats.evictions++;
+        }
+    }
+
+    /*
+        El candidato que sale de la ventana entra a probation si cabe o si es
+        mas frecuente que las victimas que hay que sacar para que quepa.
+    */
+    private void admit(UInt128 key, Entry c) {
+        int f = frequency(key);
+        while (bytes > capacity) {
+            Map<UInt128, Entry> zone = probation.isEmpty() ? protectedZone : probation;
+            if (zone.isEmpty()) {
+                break;
+            }
+            Map.Entry<UInt128, Entry> v = zone.entrySet().iterator().next();
+            if (frequency(v.getKey()) >= f) {
+                //el candidato pierde: se descarta
+                bytes -= c.size;
+                stats.evictions++;
+                return;
+            }
+            remove(v.getKey());
+            stats.evictions++;
+        }
+        probation.put(key, c);
+    }
+}
@@ -1,6 +1,6 @@
 package peersim.Traffic;
 
-import java.math.BigInteger;
+import peersim.pastry.UInt128;
 
 public class Query {
 
@@ -11,22 +11,27 @@ public class Query {
     private static long ID_GENERATOR = 0;
     public static final int MAX_PATH = 20;
     protected int pathSize = 0;
-    public BigInteger[] path = null;
-    public BigInteger src;
-    public BigInteger dest;
-    public BigInteger key;
+    public UInt128[] path = null;
+    public UInt128 src;
+    public UInt128 dest;
+    public UInt128 key;
     public Object body = null;
     public int hops;
     public static final int MSG_LOOKUP = 0;
     public static final int MSG_INSERT = 6;//COMO EL MESSAGE DE PASTRY
     public static final int MSG_REPLY = 2;
-    public static final int MSG_REPLICA = 3;
     public static final int MSG_RESULT = 7;
     public static final int MSG_LOOKUP_DFS = 8;
+    public static final int MSG_INSERT_DFS = 9;
+    public static final int MSG_MANIFEST = 10;
+    public static final int MSG_REPLICA = 11;
+    public static final int MSG_CACHE = 12;
+    public static final int MSG_TIMEOUT = 14;
+    public static final int MSG_RETRY = 15;
 
     public Query(int messageType, Object body) {
         this.id = (ID_GENERATOR++);
-        this.path = new BigInteger[MAX_PATH];
+        this.path = new UInt128[MAX_PATH];
         this.messageType = messageType;
         this.body = body;
         this.value = new String[2];
@@ -52,7 +57,7 @@ public class Query {
         return new Query(MSG_RESULT, body);
     }
 
-    public void copyPath(BigInteger[] track) {
+    public void copyPath(UInt128[] track) {
         this.path = track;
     }
 
@@ -0,0 +1,107 @@
+package peersim.pastry;
+
+import java.util.Arrays;
+
+//__________________________________________________________________________________________________
+/**
+ * Counting Bloom filter over 128-bit keys: each key increments HASHES counters, so keys can also
+ * be removed. A counter that reaches its maximum stays there (it can no longer be decremented
+ * without risking false negatives). The digest is the plain Bloom filter (one bit per counter)
+ * that the nodes send to their leaf set in the probes, and mightContain() tests a key against a
+ * digest received from another node.
+ */
+public class CountingBloomFilter {
+
+    //______________________________________________________________________________________________
+    private static final int HASHES = 4;
+    private static final int SATURATED = 255;
+
+    private final byte[] counters;
+    private final int mask;
+
+    //______________________________________________________________________________________________
+    /**
+     * @param bits int number of counters (and of bits of the digest), rounded up to a power of 2
+     * not smaller than 64
+     */
+    public CountingBloomFilter(int bits) {
+        int n = 64;
+        while (n < bits) {
+            n <<= 1;
+        }
+        counters = new byte[n];
+        mask = n - 1;
+    }
+
+    //______________________________________________________________________________________________
+    /**
+     * i-th position of the key (double hashing over the two halves of the key)
+     */
+    private static int position(UInt128 key, int i, int mask) {
+        long h1 = key.hi * 0x9E3779B97F4A7C15L ^ key.lo;
+        long h2 = (key.lo * 0xC2B2AE3D27D4EB4FL ^ key.hi) | 1;
+        return (int) ((h1 + i * h2) >>> 32) & mask;
+    }
+
+    //______________________________________________________________________________________________
+    public void add(UInt128 key) {
+        for (int i = 0; i < HASHES; i++) {
+            int p = position(key, i, mask);
+            if ((counters[p] & 0xff) < SATURATED) {
+                counters[p]++;
+            }
+        }
+    }
+
+    //______________________________________________________________________________________________
+    /**
+     * removes a key previously added (removing a key that was not added corrupts the filter)
+     */
+    public void remove(UInt128 key) {
+        for (int i = 0; i < HASHES; i++) {
+            int p = position(key, i, mask);
+            int c = counters[p] & 0xff;
+            if (c > 0 && c < SATURATED) {
+                counters[p]--;
+            }
+        }
+    }
+
+    //______________________________________________________________________________________________
+    public void clear() {
+        Arrays.fill(counters, (byte) 0);
+    }
+
+    //______________________________________________________________________________________________
+    /**
+     * @return long[] one bit per counter, set if the counter is not zero
+     */
+    public long[] digest() {
+        long[] bits = new long[counters.length / 64];
+        for (int p = 0; p < counters.length; p++) {
+            if (counters[p] != 0) {
+                bits[p >>> 6] |= 1L << p;
+            }
+        }
+        return bits;
+    }
+
+    //______________________________________________________________________________________________
+    /**
+     * @param digest long[] as returned by digest()
+     * @param key UInt128
+     * @return false if the key is surely not in the filter the digest was taken from
+     */
+    public static boolean mightContain(long[] digest, UInt128 key) {
+        int mask = digest.length * 64 - 1;
+        for (int i = 0; i < HASHES; i++) {
+            int p = position(key, i, mask);
+            if ((digest[p >>> 6] & (1L << p)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+    //______________________________________________________________________________________________
+
+} // End of class
@@ -3,7 +3,6 @@ package peersim.pastry;
 import peersim.core.CommonState;
 import peersim.config.Configuration;
 import peersim.core.Network;
-import java.math.BigInteger;
 
 //______________________________________________________________________________________________
 /**
@@ -44,10 +43,12 @@ public class CustomDistribution implements peersim.core.Control {
      * @return boolean always false
      */
     public boolean execute() {
-       BigInteger tmp;
+       UInt128 tmp;
+       NodeRegistry.clear();
        for (int i = 0; i < Network.size(); ++i) {
            tmp = urg.generate();
            ((MSPastryProtocol)(Network.get(i).getProtocol(protocolID))).setNodeId(tmp);
+           NodeRegistry.register(tmp, Network.get(i));
        }
 
         return false;
@@ -0,0 +1,186 @@
+package peersim.pastry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+//__________________________________________________________________________________________________
+/**
+ * Hash map from 128-bit keys to objects, used by the nodes to index the keys they own (chunks,
+ * file manifests, replica bookkeeping). Keys are not stored as UInt128 objects but as two parallel
+ * long arrays, with open addressing and linear probing, so a lookup touches a few array slots and
+ * never follows a chain of entry objects. A slot is empty when its value is null, therefore null
+ * values are not allowed. Removal shifts back the following entries of the run, so there are no
+ * tombstones and the cost of a lookup does not grow with the number of removals.
+ */
+public class KeyIndex<V> {
+
+    //______________________________________________________________________________________________
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] his;
+    private long[] los;
+    private Object[] values;
+    private int mask;
+    private int size;
+
+    //______________________________________________________________________________________________
+    public KeyIndex() {
+        allocate(MIN_CAPACITY);
+    }
+
+    //______________________________________________________________________________________________
+    private void allocate(int capacity) {
+        his = new long[capacity];
+        los = new long[capacity];
+        values = new Object[capacity];
+        mask = capacity - 1;
+    }
+
+    //______________________________________________________________________________________________
+    /**
+     * home slot of a key: the mixing of UInt128.hashCode, multiplied again so the slot is taken
+     * from well mixed high bits
+     */
+    private int slot(long hi, long lo) {
+        long h = (hi * 0x9E3779B97F4A7C15L ^ lo) * 0xC2B2AE3D27D4EB4FL;
+        return (int) (h >>> 32) & mask;
+    }
+
+    //______________________________________________________________________________________________
+    /**
+     * slot holding the key, or -(empty slot where it would go) - 1
+     */
+    private int find(long hi, long lo) {
+        int i = slot(hi, lo);
+        while (values[i] != null) {
+            if (his[i] == hi && los[i] == lo) {
+                return i;
+            }
+            i = (i + 1) & mask;
+        }
+        return -i - 1;
+    }
+
+    //______________________________________________________________________________________________
+    public int size() {
+        return size;
+    }
+
+    //______________________________________________________________________________________________
+    public boolean containsKey(UInt128 key) {
+        return find(key.hi, key.lo) >= 0;
+    }
+
+    //______________________________________________________________________________________________
+    /**
+     * @param key UInt128
+     * @return the value of the key, or null
+     */
+    @SuppressWarnings("unchecked")
+    public V get(UInt128 key) {
+        int i = find(key.hi, key.lo);
+        return i < 0 ? null : (V) values[i];
+    }
+
+    //______________________________________________________________________________________________
+    /**
+     * @param key UInt128
+     * @param value V (not null)
+     * @return the previous value of the key, or null
+     */
+    @SuppressWarnings("unchecked")
+    public V put(UInt128 key, V value) {
+        if (value == null) {
+            throw new NullPointerException("null values are not allowed");
+        }
+        int i = find(key.hi, key.lo);
+        if (i >= 0) {
+            V old = (V) values[i];
+            values[i] = value;
+            return old;
+        }
+        i = -i - 1;
+        his[i] = key.hi;
+        los[i] = key.lo;
+        values[i] = value;
+        //load factor at most 1/2, so probe runs stay short
+        if (++size * 2 > values.length) {
+            resize(values.length * 2);
+        }
+        return null;
+    }
+
+    //______________________________________________________________________________________________
+    /**
+     * @param key UInt128
+     * @return the removed value, or null if the key was not there
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(UInt128 key) {
+        int i = find(key.hi, key.lo);
+        if (i < 0) {
+            return null;
+        }
+        V old = (V) values[i];
+        //backward shift: moves up the entries of the run that can not be found past the hole
+        int hole = i;
+        int j = (i + 1) & mask;
+        while (values[j] != null) {
+            int home = slot(his[j], los[j]);
+            if (((j - home) & mask) >= ((j - hole) & mask)) {
+                his[hole] = his[j];
+                los[hole] = los[j];
+                values[hole] = values[j];
+                hole = j;
+            }
+            j = (j + 1) & mask;
+        }
+        values[hole] = null;
+        size--;
+        return old;
+    }
+
+    //______________________________________________________________________________________________
+    public void clear() {
+        if (values.length > MIN_CAPACITY) {
+            allocate(MIN_CAPACITY);
+        } else {
+            Arrays.fill(values, null);
+        }
+        size = 0;
+    }
+
+    //______________________________________________________________________________________________
+    private void resize(int capacity) {
+        long[] oldHis = his, oldLos = los;
+        Object[] oldValues = values;
+        allocate(capacity);
+        for (int i = 0; i < oldValues.length; i++) {
+            if (oldValues[i] != null) {
+                int j = -find(oldHis[i], oldLos[i]) - 1;
+                his[j] = oldHis[i];
+                los[j] = oldLos[i];
+                values[j] = oldValues[i];
+            }
+        }
+    }
+
+    //______________________________________________________________________________________________
+    /**
+     * @return a copy of the values, in no particular order
+     */
+    @SuppressWarnings("unchecked")
+    public List<V> values() {
+        List<V> l = new ArrayList<V>(size);
+        for (Object v : values) {
+            if (v != null) {
+                l.add((V) v);
+            }
+        }
+        return l;
+    }
+
+    //______________________________________________________________________________________________
+
+} // End of class
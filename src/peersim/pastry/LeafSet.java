@@ -1,16 +1,18 @@
 package peersim.pastry;
 
-import java.math.BigInteger;
-import java.util.Vector;
-
-import peersim.core.Network;
-import peersim.core.Node;
+import java.util.Arrays;
 
 //__________________________________________________________________________________________________
 /**
  *
  * LeafSet class encapsulate functionalities of a Leaf Set table in a Pastry Node, allowing
  * automatic "intellingent" adding of the entries, and facilitating extraction of information
+ * <br>
+ * The entries are kept ordered along the ring of 2^128 identifiers: the right half by clockwise
+ * offset from the pivot ((n - nodeId) mod 2^128), the left half by counterclockwise offset
+ * ((nodeId - n) mod 2^128). Nodes crossing the 0 point therefore need no special case, and
+ * encompass, closest, insertion and removal are binary searches over the two int arrays of
+ * NodeRegistry handles.
  * <p>Title: MSPASTRY</p>
  *
  * <p>Description: MsPastry implementation for PeerSim</p>
@@ -28,25 +30,26 @@ public class LeafSet implements Cloneable {
     /**
      * indicates not filled positions
      */
-    private static final BigInteger EMPTY = null;
+    private static final int EMPTY = NodeRegistry.EMPTY;
 
     //______________________________________________________________________________________________
     /**
-     * ordered array of the nodeIds inserted closest to and lower than the nodeId
-     * left[0] is the closest (and less) of the current nodeId, and so on...
+     * ordered array of the nodeIds (as NodeRegistry handles) preceding the nodeId on the ring.
+     * left[0] is the closest counterclockwise node of the current nodeId, and so on...
      */
-    private BigInteger[] left = null;
+    private int[] left = null;
 
     /**
-     * ordered array of the nodeIds inserted closest to and higher than the nodeId
-     * right[0] is the closest (and greater) of the current nodeId, and so on...
+     * ordered array of the nodeIds (as NodeRegistry handles) following the nodeId on the ring.
+     * right[0] is the closest clockwise node of the current nodeId, and so on...
      */
-    private BigInteger[] right = null;
+    private int[] right = null;
+
+    /**
+     * number of filled positions of left and right (the filled ones are always the first)
+     */
+    private int nl = 0, nr = 0;
 
-    
-    public Vector <Node> nodesL;
-    public Vector <Node> nodesR;
-    
     /**
      * total size of the leaf set
      */
@@ -59,9 +62,9 @@ public class LeafSet implements Cloneable {
 
     /**
      * pivot nodeId, this is needed in order to know how to organize adding/positioning/searching of
-     * the entries of the leaf set
+     * the entries of the leaf set. Use setNodeId() to change it on a non-empty leaf set.
      */
-    public BigInteger nodeId = null;
+    public UInt128 nodeId = null;
 
 
     //______________________________________________________________________________________________
@@ -72,483 +75,336 @@ public class LeafSet implements Cloneable {
 
     //______________________________________________________________________________________________
     /**
-     * shortcut constructor to use integers instead of BigIntegers.
+     * shortcut constructor to use integers instead of UInt128s.
      * @param myNodeId long
      * @param size int
      */
     public LeafSet(long myNodeId, int size) {
-        this(new BigInteger(""+myNodeId), size);
+        this(UInt128.valueOf(myNodeId), size);
     }
 
     //______________________________________________________________________________________________
     /**
      * Creates a new Leaf Set by pivoting it with the specified nodeId, and with the desired size
-     * of the vector. Half of the size will be used to store nodes lessed than the pivot nodeId,
-     * the other half for the greater entries. Note: is size is an odd number, (size+1) will always
-     * be considered
-     * @param myNodeId BigInteger the pivot nodeId of the leafset, i.e. the nodeid of the pastry
+     * of the vector. Half of the size will be used to store nodes preceding the pivot nodeId on
+     * the ring, the other half for the following entries. Note: is size is an odd number, (size-1)
+     * will always be considered
+     * @param myNodeId UInt128 the pivot nodeId of the leafset, i.e. the nodeid of the pastry
      * node owner
      * @param size int must be > 0, and possibily an even number
      */
-    public LeafSet(BigInteger myNodeId, int size) {
+    public LeafSet(UInt128 myNodeId, int size) {
 
         nodeId = myNodeId;
+        this.size = size;
         hsize = size/2;
-        left = new BigInteger[hsize];
-        right = new BigInteger[hsize];
-        nodesL = new Vector<Node>();
-        nodesR = new Vector<Node>();
-        
+        left = new int[hsize];
+        right = new int[hsize];
+
         for (int i = 0; i < hsize; i++)
          left[i]=right[i]=EMPTY;
     }
 
-
-	public final MSPastryProtocol get(int i) {
-		return ((MSPastryProtocol) (Network.get(i)).getProtocol(3));
-	}
-   
-
     //______________________________________________________________________________________________
     /**
-     * returns EMPTY if the leaf set does not contains the specified Key.
-     * returns the position in one of the two arrays of the keyToFind otherwise.
-     * to establish if the keyToFind is located in left or in right array, simply check
-     * if newNode > keyToFind (right) or not (left)
-     * @param keyToFind long
-     * @return int
+     * shortcut to the nodeId of a handle
      */
-	private int indexOf(BigInteger keyToFind) {
-		if (keyToFind.compareTo(nodeId) > 0) { //cerca a destra
-			for (int index = 0; (index < hsize); index++) {
-				if (right[index].equals(keyToFind)) 
-					return index;
-			}
-			return -1;
-
-		}else{
-			//cerca a sinistra
-			for (int index = 0; index < hsize; index++){
-				if (left[index].equals(keyToFind)) 
-					return index;
-			}
-			return -1;
-		}
-	}
-
+    private static UInt128 id(int h) {
+        return NodeRegistry.idOf(h);
+    }
 
     //______________________________________________________________________________________________
     /**
-     * make a shift of an array v by one position, starting from the element with index "pos"
-     * (pos is included), with the purpose to create a new (empty) available slot at the index "pos"
-     * Note: the last element of the array is lost
+     * compares the ring offsets of a and b from the pivot, clockwise (right side) or
+     * counterclockwise (left side), without allocating them
+     * @return int negative if a comes first on that side, 0 if a equals b, positive otherwise
      */
-    private void shift(BigInteger[] v, int pos) {
-        for(int i = hsize-1; i > pos; i--)
-            v[i] = v[i-1];
+    private int compareOffset(UInt128 a, UInt128 b, boolean clockwise) {
+        long ah, al, bh, bl;
+        if (clockwise) {
+            al = a.lo - nodeId.lo;
+            ah = a.hi - nodeId.hi - (Long.compareUnsigned(a.lo, nodeId.lo) < 0 ? 1 : 0);
+            bl = b.lo - nodeId.lo;
+            bh = b.hi - nodeId.hi - (Long.compareUnsigned(b.lo, nodeId.lo) < 0 ? 1 : 0);
+        } else {
+            al = nodeId.lo - a.lo;
+            ah = nodeId.hi - a.hi - (Long.compareUnsigned(nodeId.lo, a.lo) < 0 ? 1 : 0);
+            bl = nodeId.lo - b.lo;
+            bh = nodeId.hi - b.hi - (Long.compareUnsigned(nodeId.lo, b.lo) < 0 ? 1 : 0);
+        }
+        return UInt128.compare(ah, al, bh, bl);
     }
 
-
-
-    //______________________________________________________________________________________________
-
-    
-    public int isInRight(BigInteger b){
-    	
-    	if(b == null)
-    		return -1;
-
-    	for (int index = 0; (index < right.length); index++) {
-    		if (right[index] != null && right[index].equals(b)){ 
-    			return index;
-    		}
-    	}
-    	return -1;
-    }
-    
-    public int isInLeft(BigInteger b){
-    	
-    	if(b == null)
-    		return -1;
-    	
-    	for (int index = left.length - 1; index >=0 ; index--) {
-			if(left[index] != null && left[index].equals(b)){ 
-				return index;
-			}
-    	}
-    	return -1;
-    }
-    
     //______________________________________________________________________________________________
     /**
-     * permanently removes the specified NodeId from this Leaf Set.
-     * @param b BigInteger
-     * @return boolean true is some element is removed, false if the element does not exists
+     * true if n is nearer to the pivot going clockwise than going counterclockwise
      */
-    public boolean removeNodeId(BigInteger b) {
-    	int l = -1;
-    	int r = -1;
-    	boolean ret = false;
-    	
-    	r = this.isInRight(b);
-    	l = this.isInLeft(b);
-    	
-    	if(r != -1){
-    		for (int i = r; i< right.length-1; i++) {
-    			right[i] = right[i+1];
-    		}
-    		right[right.length-1] = EMPTY;
-    		//System.out.println("REMOVIO LEAFNODE RIGHT");
-    		return true;
-    
-    	}
-    	if(l != -1){
-    		for (int i = l; i< left.length-1; i++) {
-    			left[i] = left[i + 1];
-    		}
-    		left[left.length-1] = EMPTY;
-    		//System.out.println("REMOVIO LEAFNODE LEFT");
-    		return true;
-
-    	}
-    	
-    	return false;
-
+    private boolean isClockwise(UInt128 n) {
+        // the clockwise offset is less than 2^128/2 (its most significant bit is 0)
+        return n.hi - nodeId.hi - (Long.compareUnsigned(n.lo, nodeId.lo) < 0 ? 1 : 0) >= 0;
     }
 
-
     //______________________________________________________________________________________________
     /**
-     * if returns "Empty" indicates: DO NOT (RE)INSERT!!!
-     * @param n long
-     * @return int
+     * binary search of the key on one side: returns the index of the first entry whose offset is
+     * greater or equal than the one of the key (count if there is none)
      */
-    private int correctRightPosition(BigInteger n) {
-    	
-    	int l=0;
-    	while (l < hsize && (! (right[l] == EMPTY)) ){
-    		if(right[l].equals(n))
-    			return -1;
-    		l++;
-    	}
-    	
-    	// VER CASOS LIMITE
-    	 if (n.compareTo(nodeId) > 0)   {
-    	 
-    		 for(int i = 0; i < hsize ;i++) {
-    	            if (right[i] == EMPTY) 
-    	            	return i;
-    	            if (right[i].equals(n)) 
-    	            	return -1;
-    	            if (right[i].compareTo(n) > 0 && right[i].compareTo(nodeId) > 0) 
-    	            	return i;
-    	            if (right[i].compareTo(n) < 0 && right[i].compareTo(nodeId) < 0) 
-    	            	return i;
-    	        }
-    	        return hsize;
-    	 
-    	 } else {
-    	//	 System.out.println("Right critico: " + RoutingTable.truncateNodeId(n));
-    		 for(int i = 0; i < hsize ;i++) {
-    	            if (right[i] == EMPTY) 
-    	            	return i;
-    	            if (right[i].equals(n)) 
-    	            	return -1;
-    	            if (right[i].compareTo(n) > 0 && right[i].compareTo(nodeId) < 0){
-    	            	
-    	      // 		 System.out.println("Right critico: " + i);
-
-    	            	return i;
-    	            }
-    	          //  if (right[i].compareTo(n) < 0 && right[i].compareTo(nodeId) < 0) 
-    	          //  	return i;
-    	       
-    	            	
-    	        }
-    	        return hsize;
-
-    		 
-    	 }
-        
-        
+    private int search(int[] v, int count, UInt128 key, boolean clockwise) {
+        int lo = 0, hi = count;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (compareOffset(id(v[mid]), key, clockwise) < 0)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
     }
 
-
+    //______________________________________________________________________________________________
     /**
-     * Empty indicates: DO NOT (RE)INSERT!!!
-     * @param n long
-     * @return int
+     * returns the position of the nodeId on the given side, -1 if not present
      */
-    private int correctLeftPosition(BigInteger n) {
-    	// VER CASOS LIMITE
-    //	 System.out.println("Left position: " + RoutingTable.truncateNodeId(n) + " in " + RoutingTable.truncateNodeId(nodeId));
-    	
-    	int l=0;
-    	while (l < hsize && (! (left[l] == EMPTY))  ){
-    		if(left[l].equals(n))
-    			return -1;
-    		l++;
-    	}
-    	
-    	if (n.compareTo(nodeId) < 0)   {
-
-    		for(int i = 0; i < hsize;i++) {
-    			if (left[i] == EMPTY) 
-    				return i;
-    			if (left[i].equals(n)) 
-    				return -1;
-    			if (left[i].compareTo(n) < 0 && left[i].compareTo(nodeId) < 0) 
-    				return i;
-    			if (left[i].compareTo(n) > 0 && left[i].compareTo(nodeId) > 0) 
-    				return i;
-
-    		}
-    		return hsize;
-    	} else {
-    		
-    	//	 System.out.println("Left critico: " + RoutingTable.truncateNodeId(n) + " in " + RoutingTable.truncateNodeId(nodeId));
-    		 
-    		for(int i = 0; i < hsize;i++) {
-    			if (left[i] == EMPTY) 
-    				return i;
-    			if (left[i].equals(n)) 
-    				return -1;
-    			if (left[i].compareTo(n) < 0 && left[i].compareTo(nodeId) > 0)
-    					return i;
-    		}
-    				return hsize;
-    	}
+    private int indexOf(int[] v, int count, UInt128 keyToFind, boolean clockwise) {
+        int i = search(v, count, keyToFind, clockwise);
+        if (i < count && id(v[i]).equals(keyToFind))
+            return i;
+        return -1;
     }
 
+    //______________________________________________________________________________________________
+    public int isInRight(UInt128 b){
+        return indexOf(right, nr, b, true);
+    }
 
+    public int isInLeft(UInt128 b){
+        return indexOf(left, nl, b, false);
+    }
 
-
-    public void pushToRight(BigInteger newNode) {
-       if (newNode.equals(nodeId)) 
-    		return;
-    	
-       int index = correctRightPosition(newNode);
-       if (index== -1) 
-    	   return;
-       if (index == hsize) 
-    	   return;
-       
-       shift(right, index);
-  //     System.out.println("Index Right: " + index);
-       right[index] = newNode;
+    //______________________________________________________________________________________________
+    /**
+     * permanently removes the specified NodeId from this Leaf Set.
+     * @param b UInt128
+     * @return boolean true is some element is removed, false if the element does not exists
+     */
+    public boolean removeNodeId(UInt128 b) {
+        boolean ret = false;
+
+        int r = this.isInRight(b);
+        if (r != -1) {
+            System.arraycopy(right, r + 1, right, r, nr - r - 1);
+            right[--nr] = EMPTY;
+            ret = true;
+        }
+        int l = this.isInLeft(b);
+        if (l != -1) {
+            System.arraycopy(left, l + 1, left, l, nl - l - 1);
+            left[--nl] = EMPTY;
+            ret = true;
+        }
+        return ret;
     }
 
-    
-    
-    public void pushToLeft(BigInteger newNode) {
-       if (newNode.equals(nodeId)) 
-    		return;
-       
-       int index = correctLeftPosition(newNode);
-       if (index==-1) 
-    	   return;
-       
-       if (index==hsize) 
-    	   return;
-       
-       shift(left, index);
-//       System.out.println("Index Left: " + index);
-       left[index] = newNode;
+    //______________________________________________________________________________________________
+    /**
+     * inserts n in its ordered position of the given side, if it is among the hsize nearest ones
+     * @return int the new number of entries of the side
+     */
+    private int insert(int[] v, int count, UInt128 n, boolean clockwise) {
+        if (n.equals(nodeId))
+            return count;
+        int i = search(v, count, n, clockwise);
+        if (i == hsize || (i < count && id(v[i]).equals(n)))
+            return count;
+        int moved = (count == hsize) ? count - i - 1 : count - i;
+        System.arraycopy(v, i, v, i + 1, moved);
+        v[i] = NodeRegistry.intern(n);
+        return count == hsize ? count : count + 1;
     }
 
+    public void pushToRight(UInt128 newNode) {
+        nr = insert(right, nr, newNode, true);
+    }
 
-    private int countNonEmpty(BigInteger[]a) {
-        int count = 0;
-        for(count = 0; (count < a.length) && (a[count]!=EMPTY);count++) /*NOOP*/ ;
-        return count;
+    public void pushToLeft(UInt128 newNode) {
+        nl = insert(left, nl, newNode, false);
     }
 
     //______________________________________________________________________________________________
     /**
-     * shortcut for  push(new BigInteger(""+newNode));
+     * shortcut for  push(UInt128.valueOf(newNode));
      * @param newNode long
      */
-    
     public void push(long newNode) {
-    	//System.out.println("NODO PUSH: " + RoutingTable.truncateNodeId(new BigInteger(""+newNode)));
-        push(new BigInteger(""+newNode));
+        push(UInt128.valueOf(newNode));
     }
-     
 
-
-    //______________________________________________________________________________________________
-    private boolean checkCriticInterval(BigInteger node){
-    	//CHECK CLOCKWISE
-    	if(node.compareTo( get(0).nodeId) >= 0 && node.compareTo(get(hsize-1 ).nodeId) <= 0){
-    		//System.out.println("TRUE");
-    		return true;
-    	}
-    	//CHECK COUNTERWISE
-    	if(node.compareTo( get(Network.size()-1).nodeId) <= 0 && node.compareTo(get(Network.size()-1 - hsize).nodeId) >= 0){
-    		//System.out.println("TRUE");    		
-    		return true;
-    	}
-    	return false;
-    }
-    
-    
     /**
      * push into the leafset the specified node, by according the properties specified by the
-     * mspastry protocol
+     * mspastry protocol: the node goes on the side it is nearer to the pivot from
      *
-     * @param newNode long
+     * @param newNode UInt128
+     */
+    public void push(UInt128 newNode) {
+        if (newNode.equals(this.nodeId))
+            return;
+        if (isClockwise(newNode))
+            pushToRight(newNode);
+        else
+            pushToLeft(newNode);
+    }
+
+    //______________________________________________________________________________________________
+    /**
+     * changes the pivot of this leaf set, the entries are reordered according to it (and the ones
+     * equal to the new pivot are dropped)
+     * @param pivot UInt128
      */
-    
-    public void push(BigInteger newNode) {
-    	
-    	// VER CASOS LIMITE
-    	//System.out.println("NODO PUSH: " + RoutingTable.truncateNodeId(newNode)  );
-    	if ( !newNode.equals(this.nodeId)){ 
-
-    		//System.out.println("TO INSERT: "+ RoutingTable.truncateNodeId(newNode));
-    		//System.out.println("ANTES:   "+ this.toString());
-    		//SI ESTA EN INTERVALO CRITICO 
-    		if(checkCriticInterval(newNode)){
-    			//System.out.println("ESTA EN INTERVALO CRITICO");
-    			//RIGHT PROBLEMAAAA
-    			if((newNode.compareTo(this.nodeId) > 0 &&  newNode.compareTo(get(Network.size()-1).nodeId) < 0) 
-    					|| (newNode.compareTo(this.nodeId) < 0 && newNode.compareTo(get(hsize-1).nodeId) < 0)){
-    				//System.out.println("RIGHT");
-    				pushToRight(newNode);
-    		}
-    			else{
-    				//System.out.println("LEFT");
-    				pushToLeft(newNode);
-    		}
-
-    		}else{ //SE APLICA EVALUACION TRADICIONAL
-    			if (newNode.compareTo(nodeId) > 0 )
-    				pushToRight(newNode);
-
-    			if (newNode.compareTo(nodeId) < 0 )
-    				pushToLeft(newNode);
-    		}
-
-    		//System.out.println("DESPUES: "+ this.toString());
-    	}
+    public void setNodeId(UInt128 pivot) {
+        int[] all = listAllHandles();
+        this.nodeId = pivot;
+        Arrays.fill(left, EMPTY);
+        Arrays.fill(right, EMPTY);
+        nl = nr = 0;
+        for (int i = 0; i < all.length; i++)
+            push(id(all[i]));
     }
 
     //______________________________________________________________________________________________
     /**
      * returns true iff whe specified node is found in the table
-     * @param node BigInteger
+     * @param node UInt128
      * @return boolean
      */
-    public boolean containsNodeId(BigInteger node) {
-     return indexOf(node) != -1;
+    public boolean containsNodeId(UInt128 node) {
+        return isInRight(node) != -1 || isInLeft(node) != -1;
     }
 
-
     //______________________________________________________________________________________________
     /**
-     * returns the lesser nodeid stored
-     * @return BigInteger
+     * returns true if key lies on the arc of the ring going from the leftmost to the rightmost
+     * entry through the pivot.
+     * it does not require that key is contained in the table. Note: this.ls.encompass(this.ls.nodeid)
+     * always returns true, in all cases.
+     * @param k UInt128
+     * @return boolean
      */
-    private BigInteger min() {
-        if (countNonEmpty(left) == 0) 
-        	return nodeId;
-
-        return left[countNonEmpty(left)-1];
+    public boolean encompass(UInt128 k) {
+        if (k.equals(nodeId))
+            return true;
+        if (nr > 0 && compareOffset(k, id(right[nr - 1]), true) <= 0)
+            return true;
+        return nl > 0 && compareOffset(k, id(left[nl - 1]), false) <= 0;
     }
 
+    //______________________________________________________________________________________________
     /**
-     * returns the greater nodeid stored
-     * @return BigInteger
+     * returns the handle of the entry nearest to k along the ring (the pivot excluded), or EMPTY
+     * if the leaf set is empty. The nearest entry is either the predecessor or the successor of k
+     * among the entries, which are found with one binary search per side.
+     * @param k UInt128
+     * @return int
      */
-    private BigInteger max() {
-        if (countNonEmpty(right)==0) 
-        	return nodeId;
-        return right[countNonEmpty(right)-1];
+    public int closest(UInt128 k) {
+        int best = EMPTY;
+        if (nr > 0) {
+            int i = search(right, nr, k, true);
+            best = nearest(k, best, right[i < nr ? i : 0]);
+            best = nearest(k, best, right[i > 0 ? i - 1 : nr - 1]);
+        }
+        if (nl > 0) {
+            int i = search(left, nl, k, false);
+            best = nearest(k, best, left[i < nl ? i : 0]);
+            best = nearest(k, best, left[i > 0 ? i - 1 : nl - 1]);
+        }
+        return best;
+    }
+
+    private static int nearest(UInt128 k, int a, int b) {
+        if (a == EMPTY || UInt128.compareRingDistance(k, id(b), id(a)) < 0)
+            return b;
+        return a;
     }
 
     //______________________________________________________________________________________________
     /**
-     * returns true if key is between the leftmost and the rightmost.
-     * it does not require that key is contained in the table, only requires that the key is
-     * greater-equal than the min nodeid stored and lesser-equal than the max nodeid stored.
-     * Note: this.ls.encompass(this.ls.nodeid) always returns true, in all cases.
-     * @param k BigInteger
-     * @return boolean
+     * returns up to n entries of the leaf set, the nearest to the pivot along the ring first
+     * (merging the two sides, both already sorted by their offset from the pivot)
+     * @param n int
+     * @return UInt128[]
      */
-    public boolean encompass(BigInteger k) {
-    	boolean ret = false;
-    	if(BigInteger.ZERO.compareTo(min()) < 0 && BigInteger.ZERO.compareTo(max())< 0 ){
-    		if(k.compareTo(min()) < 0 && k.compareTo(max())< 0)
-    			ret = true;
-    		if(k.compareTo(min()) > 0 && k.compareTo(max())< 0)
-    			ret =  true;
-    	}
-    		
-        if (min().compareTo(k)  > 0 || max().compareTo(k)  < 0) 
-        	ret = false;
-
-        return ret;
+    public UInt128[] neighbours(int n) {
+        UInt128[] result = new UInt128[Math.max(0, Math.min(n, nl + nr))];
+        int l = 0, r = 0;
+        for (int i = 0; i < result.length; i++) {
+            if (l == nl || (r < nr && UInt128.compareRingDistance(nodeId, id(right[r]), id(left[l])) <= 0))
+                result[i] = id(right[r++]);
+            else
+                result[i] = id(left[l++]);
+        }
+        return result;
     }
-    
-    
+
+    //______________________________________________________________________________________________
     public boolean needRepairLeft(){
-    	
-    	for(int i = 0 ; i < this.hsize ; i++) {
-    		if(left[i] == EMPTY){
-    			return true;
-    		}
-    	}
-    	return false;
+        return nl < hsize;
     }
-    
+
     public boolean needRepairRight(){
-    	
-    	for(int i = 0 ; i < this.hsize ; i++) {
-    		if(right[i] == EMPTY ){
-    			return true;
-    		}
-    	}
-    	return false;
+        return nr < hsize;
     }
 
+    //______________________________________________________________________________________________
+    /**
+     * number of entries in the leaf set
+     * @return int
+     */
+    public int count() {
+        return nl + nr;
+    }
+
+    /**
+     * the handle of the i-th entry, 0 &lt;= i &lt; count(), in the same order of listAllNodes()
+     * @param i int
+     * @return int
+     */
+    public int handleAt(int i) {
+        return i < nl ? left[nl - 1 - i] : right[i - nl];
+    }
 
     //______________________________________________________________________________________________
     /**
-     * Outputs an (ordered, from min to max) array of all nodes in the leaf set.
+     * Outputs an (ordered, from the leftmost to the rightmost) array of all nodes in the leaf set.
      * The actual pivot nodeid is not included.
-     * @return BigInteger[]
-     */
-    public BigInteger[] listAllNodes() {
-      int numLeft = countNonEmpty(left);
-      int numRight = countNonEmpty(right);
-      BigInteger[] result = new BigInteger[numLeft+numRight];
-      for(int i = 0; i<numLeft;i++)
-          result[i] = left[i];
-      for(int i = 0; i<numRight;i++)
-          result[numLeft+i] = right[i];
+     * @return UInt128[]
+     */
+    public UInt128[] listAllNodes() {
+      UInt128[] result = new UInt128[nl+nr];
+      for(int i = 0; i<result.length;i++)
+          result[i] = id(handleAt(i));
        return result;
     }
-    
 
-    
-    
-    public void putNodeLeft(Node n){
-    	nodesL.add(n);	
+    //______________________________________________________________________________________________
+    /**
+     * same as listAllNodes(), but the NodeRegistry handles of the nodes are returned
+     * @return int[]
+     */
+    public int[] listAllHandles() {
+      int[] result = new int[nl+nr];
+      for(int i = 0; i<result.length;i++)
+          result[i] = handleAt(i);
+      return result;
     }
 
-    
-    public void putNodeRight(Node n){
-    	nodesR.add(n);
-    }
-    
-    
-    public Object[] getAllNodesLeft(){
-    	return nodesL.toArray();
-    }
-    
-    
-    public Object[] getAllNodesRight(){
-    	return nodesR.toArray();
+    //______________________________________________________________________________________________
+    /**
+     * estimated number of bytes used by the entries of this leaf set (array headers included,
+     * the nodeIds are shared in the NodeRegistry and are not counted)
+     * @return long
+     */
+    public long footprint() {
+        return 2 * (16 + 4L * hsize);
     }
 
     //______________________________________________________________________________________________
@@ -561,11 +417,11 @@ public class LeafSet implements Cloneable {
         dolly.nodeId = this.nodeId;
         dolly.size = this.size;
         dolly.hsize = this.hsize;
+        dolly.nl = this.nl;
+        dolly.nr = this.nr;
         dolly.left = this.left.clone();
         dolly.right = this.right.clone();
-        dolly.nodesL = new Vector<Node>();
-        dolly.nodesR = new Vector<Node>();
-        
+
         return dolly;
     }
 
@@ -602,7 +458,7 @@ public class LeafSet implements Cloneable {
       String l = "[XX]";
       for(int i = hsize - 1 ; i>= 0 ; i--){
     	  if (left[i]!=EMPTY)
-            l = l.replace("XX", RoutingTable.truncateNodeId(left[i])+";XX");
+            l = l.replace("XX", RoutingTable.truncateNodeId(id(left[i]))+";XX");
       }
       l = l.replace(";XX","");
       l = l.replace("XX","");
@@ -611,7 +467,7 @@ public class LeafSet implements Cloneable {
 
       String r = "[XX]";
       for(int i = 0; (i<hsize)&&(right[i]!=EMPTY);i++)
-      r = r.replace("XX", (RoutingTable.truncateNodeId(right[i]))+";XX");
+      r = r.replace("XX", (RoutingTable.truncateNodeId(id(right[i])))+";XX");
       r = r.replace(";XX","");
       r = r.replace("XX","");
 
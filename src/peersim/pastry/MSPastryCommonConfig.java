@@ -17,8 +17,8 @@ package peersim.pastry;
  */
 public class MSPastryCommonConfig {
 
-  public static final int DIGITS = 32;          /*                 default 32 */
   public static final int BITS  = 128;          /*                 default 128*/
+  public static       int DIGITS = 32;          /* =ceil(BITS/B)   default 32 */
 
   public static       int B      = 4;           /*                 default   4*/
   public static       int BASE   = 16;          /*   = 2^B         default  16*/
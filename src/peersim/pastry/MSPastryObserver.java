@@ -1,10 +1,21 @@
 package peersim.pastry;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Predicate;
 import peersim.core.Control;
 import peersim.util.IncrementalStats;
 import peersim.core.Network;
 import peersim.config.Configuration;
 import peersim.core.CommonState;
+import peersim.DistributedFileSystem.ChunkCodec;
+import peersim.DistributedFileSystem.DistributedFileSystem;
+import peersim.DistributedFileSystem.Manifest;
+import peersim.DistributedFileSystem.MappedRegions;
+import peersim.DistributedFileSystem.SlabArena;
 
 //______________________________________________________________________________________________
 public class MSPastryObserver implements Control {
@@ -20,6 +31,24 @@ public class MSPastryObserver implements Control {
      * keep statistics of the time every every message needed for delivery.
      */
     public static IncrementalStats timeStore = new IncrementalStats();
+    /**
+     * keep statistics of the time from a file lookup until the first byte of the file is written,
+     * and until the last one is (the file is rebuilt).
+     */
+    public static IncrementalStats firstByteTime = new IncrementalStats();
+    public static IncrementalStats fileTime = new IncrementalStats();
+    /**
+     * time to the last byte of every file rebuilt since the start of the simulation, for the
+     * percentiles (IncrementalStats keeps only the moments).
+     */
+    private static long[] fileTimes = new long[64];
+    private static int fileTimeCount = 0;
+    /**
+     * lookups sent by their destination to a leaf whose key digest matched, and those of them the
+     * leaf could not answer (false positives of the digest).
+     */
+    public static long redirected = 0;
+    public static long falseRedirects = 0;
 
     /**
      * Parameter of the protocol we want to observe
@@ -37,6 +66,34 @@ public class MSPastryObserver implements Control {
      */
     private String prefix;
 
+    //______________________________________________________________________________________________
+    /**
+     * records the time a file took to be rebuilt
+     *
+     * @param time long
+     */
+    public static void addFileTime(long time) {
+        fileTime.add(time);
+        if (fileTimeCount == fileTimes.length) {
+            fileTimes = Arrays.copyOf(fileTimes, fileTimes.length * 2);
+        }
+        fileTimes[fileTimeCount++] = time;
+    }
+
+    //______________________________________________________________________________________________
+    /**
+     * @param p double between 0 and 1
+     * @return long the p-th percentile (nearest rank) of the recorded file times, 0 if none
+     */
+    private static long fileTimePercentile(double p) {
+        if (fileTimeCount == 0) {
+            return 0;
+        }
+        long[] sorted = Arrays.copyOf(fileTimes, fileTimeCount);
+        Arrays.sort(sorted);
+        return sorted[Math.max(0, (int) Math.ceil(p * fileTimeCount) - 1)];
+    }
+
     //______________________________________________________________________________________________
     public MSPastryObserver(String prefix) {
         this.prefix = prefix;
@@ -52,26 +109,198 @@ public class MSPastryObserver implements Control {
     public boolean execute() {
 
         int sz = Network.size();
+        long stateBytes = 0;
+        IncrementalStats keyLoad = new IncrementalStats();
+        IncrementalStats servedLoad = new IncrementalStats();
+        long replicas = 0;
+        MSPastryProtocol sample = null;
         for (int i = 0; i < Network.size(); i++) {
             if (!Network.get(i).isUp()) {
                 sz--;
+                continue;
             }
+            MSPastryProtocol p = (MSPastryProtocol) Network.get(i).getProtocol(pid);
+            stateBytes += p.routingTable.footprint() + p.leafSet.footprint();
+            keyLoad.add(p.keyCount());
+            servedLoad.add(p.served);
+            p.served = 0;
+            replicas += p.getApp().replicaCount();
+            sample = p;
         }
 
-        String s = String.format(
-                "[time=%d]:[with N=%d current nodes UP] [%f average hops] [%d msec time] [%d/%d hit/miss]",
-                CommonState.getTime(), sz,hopStore.getAverage(),(int) timeStore.getAverage(),
-                (int) hit.getN(),(int) miss.getN()
-        );
-
-        System.err.println(s);
+        String time = String.format("[time=%d]:", CommonState.getTime());
+        System.err.println(time + routing(sz, stateBytes, keyLoad, servedLoad));
+        //every node has the same configuration, any node UP tells which features are on
+        if (sample != null) {
+            DistributedFileSystem app = sample.getApp();
+            if (sample.filtersKeys()) {
+                System.err.println(time + digests());
+            }
+            System.err.println(time + storage(app, replicas));
+            if (app.compresses()) {
+                System.err.println(time + codec());
+            }
+            if (app.hasLocalCache() || app.hasPathCache()) {
+                System.err.println(time + caches(app));
+            }
+            System.err.println(time + retrieval());
+        }
 
         timeStore.reset();
         hopStore.reset();
         miss.reset();
         hit.reset();
+        firstByteTime.reset();
+        fileTime.reset();
+        redirected = 0;
+        falseRedirects = 0;
         return false;
     }
+
+    //______________________________________________________________________________________________
+    /**
+     * hops, latency and load of the lookups routed since the last step, and routing state
+     */
+    private String routing(int sz, long stateBytes, IncrementalStats keyLoad, IncrementalStats servedLoad) {
+        return String.format(
+                "[with N=%d current nodes UP] [%f average hops] [%d max hops] [%d msec time] [%d/%d hit/miss] [%d bytes/node routing state] [%.2f/%d avg/max keys per node, std %.2f] [%.2f/%d avg/max lookups served per node, std %.2f]",
+                sz, hopStore.getAverage(), hopStore.getN() == 0 ? 0 : (int) hopStore.getMax(),
+                (int) timeStore.getAverage(), (int) hit.getN(), (int) miss.getN(),
+                sz == 0 ? 0 : stateBytes / sz,
+                keyLoad.getAverage(), sz == 0 ? 0 : (int) keyLoad.getMax(), keyLoad.getStD(),
+                servedLoad.getAverage(), sz == 0 ? 0 : (int) servedLoad.getMax(), servedLoad.getStD());
+    }
+
+    //______________________________________________________________________________________________
+    /**
+     * lookups sent to a leaf by its key digest since the last step (bloom_bits > 0)
+     */
+    private String digests() {
+        return String.format("[digests] [%d/%d lookups redirected by leaf digests/false positives]",
+                redirected, falseRedirects);
+    }
+
+    //______________________________________________________________________________________________
+    /**
+     * deduplication, redundancy and durability of the stored chunks
+     */
+    private String storage(DistributedFileSystem app, long replicas) {
+        int[] files = recoverableFiles();
+        StringBuilder s = new StringBuilder(String.format(
+                "[storage] [%.2f dedup ratio, %d KB storage / %d KB bandwidth saved] [%.2f storage overhead] [%d replicas stored] [%d/%d files recoverable] [%d KB chunk traffic]",
+                DistributedFileSystem.dedupStoredBytes == 0 ? 1.0
+                        : (double) DistributedFileSystem.dedupLogicalBytes / DistributedFileSystem.dedupStoredBytes,
+                (DistributedFileSystem.dedupLogicalBytes - DistributedFileSystem.dedupStoredBytes) / 1024,
+                DistributedFileSystem.dedupSkippedBytes / 1024,
+                DistributedFileSystem.insertedBytes == 0 ? 0
+                        : (double) DistributedFileSystem.dedupStoredBytes / DistributedFileSystem.insertedBytes,
+                replicas, files[0], files[1], DistributedFileSystem.wireBytes / 1024));
+        if (app.storesOffHeap()) {
+            s.append(String.format(" [%d/%d KB off-heap chunks used/reserved]",
+                    SlabArena.usedBytes() / 1024, SlabArena.reservedBytes() / 1024));
+        }
+        if (app.readsMapped()) {
+            s.append(String.format(" [%.2f mmap remap rate, %d KB mapped, %d windows evicted]",
+                    MappedRegions.remapRate(), MappedRegions.mappedBytes() / 1024, MappedRegions.evictions));
+        }
+        return s.toString();
+    }
+
+    //______________________________________________________________________________________________
+    /**
+     * chunk compression (compression = deflate)
+     */
+    private String codec() {
+        return String.format("[codec] [%d/%d KB chunks raw/encoded, %d/%d deflated, %d/%d us per chunk encode/decode]",
+                ChunkCodec.rawBytes / 1024, ChunkCodec.encodedBytes / 1024, ChunkCodec.deflated, ChunkCodec.chunks,
+                ChunkCodec.chunks == 0 ? 0 : ChunkCodec.encodeNanos / 1000 / ChunkCodec.chunks,
+                ChunkCodec.decoded == 0 ? 0 : ChunkCodec.decodeNanos / 1000 / ChunkCodec.decoded);
+    }
+
+    //______________________________________________________________________________________________
+    /**
+     * local caches of the requesting nodes and caches along the lookup paths, the configured ones
+     */
+    private String caches(DistributedFileSystem app) {
+        StringBuilder s = new StringBuilder("[caches]");
+        if (app.hasLocalCache()) {
+            s.append(String.format(" [%.2f local cache hit ratio, %d evictions, %d msec saved]",
+                    DistributedFileSystem.LOCAL_STATS.hitRatio(), DistributedFileSystem.LOCAL_STATS.evictions,
+                    DistributedFileSystem.cacheSavedTime));
+        }
+        if (app.hasPathCache()) {
+            s.append(String.format(" [%.2f path cache hit ratio, %d evictions, %d copies pushed]",
+                    DistributedFileSystem.PATH_STATS.hitRatio(), DistributedFileSystem.PATH_STATS.evictions,
+                    DistributedFileSystem.pathPushes));
+        }
+        return s.toString();
+    }
+
+    //______________________________________________________________________________________________
+    /**
+     * file retrievals: latency since the last step, outcome and tail latency since the start
+     */
+    private String retrieval() {
+        long done = DistributedFileSystem.requestsDone, failed = DistributedFileSystem.requestsFailed;
+        return String.format(
+                "[retrieval] [%d/%d msec time to first/last byte] [%d/%d files retrieved/failed, %.3f success rate, %d msec p99 time to last byte, %d lookups retried]",
+                (int) firstByteTime.getAverage(), (int) fileTime.getAverage(),
+                done, failed, done + failed == 0 ? 1.0 : (double) done / (done + failed),
+                fileTimePercentile(0.99), DistributedFileSystem.retries);
+    }
+
+    //______________________________________________________________________________________________
+    /**
+     * count the files whose manifest is held by a node UP and that can be rebuilt
+     * from the chunks held by the nodes a lookup would reach (the closest UP node to each key).
+     * The UP nodes are sorted by nodeId once, so the closest one to a key is one of the two
+     * neighbours of its position on the ring, found by binary search.
+     *
+     * @return int[] {recoverable files, files}
+     */
+    private int[] recoverableFiles() {
+        final List<MSPastryProtocol> up = new ArrayList<MSPastryProtocol>();
+        for (int i = 0; i < Network.size(); i++) {
+            if (Network.get(i).isUp()) {
+                up.add((MSPastryProtocol) Network.get(i).getProtocol(pid));
+            }
+        }
+        Collections.sort(up, new Comparator<MSPastryProtocol>() {
+            public int compare(MSPastryProtocol a, MSPastryProtocol b) {
+                return a.nodeId.compareTo(b.nodeId);
+            }
+        });
+        final UInt128[] ring = new UInt128[up.size()];
+        for (int i = 0; i < ring.length; i++) {
+            ring[i] = up.get(i).nodeId;
+        }
+        Predicate<UInt128> available = new Predicate<UInt128>() {
+            public boolean test(UInt128 key) {
+                int n = ring.length;
+                if (n == 0) {
+                    return false;
+                }
+                int i = Arrays.binarySearch(ring, key);
+                if (i < 0) {
+                    //the successor on the ring or, if closer, the predecessor
+                    int next = (-i - 1) % n, prev = (-i - 2 + n) % n;
+                    i = UInt128.compareRingDistance(key, ring[prev], ring[next]) < 0 ? prev : next;
+                }
+                return up.get(i).getApp().hasChunk(key);
+            }
+        };
+        int[] files = new int[2];
+        for (MSPastryProtocol p : up) {
+            DistributedFileSystem dfs = p.getApp();
+            for (Manifest manifest : dfs.getManifests().values()) {
+                files[1]++;
+                if (dfs.recoverable(manifest, available)) {
+                    files[0]++;
+                }
+            }
+        }
+        return files;
+    }
     //______________________________________________________________________________________________
 } // enf of class
 //______________________________________________________________________________________________
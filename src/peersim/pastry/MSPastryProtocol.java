@@ -18,19 +18,15 @@ package peersim.pastry;
  * @author Elisa Bisoffi, Manuel Cortella
  * @version 1.0
  */
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
-import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.math.BigInteger;
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Comparator;
 import java.util.List;
 import peersim.DistributedFileSystem.DistributedFileSystem;
 import peersim.Traffic.Query;
 import peersim.config.Configuration;
+import peersim.config.IllegalParameterException;
 import peersim.core.CommonState;
 import peersim.core.Network;
 import peersim.core.Node;
@@ -75,19 +71,29 @@ public class MSPastryProtocol implements Cloneable, EDProtocol {
 
     //______________________________________________________________________________________________
     private static final String PAR_TRANSPORT = "transport";
+    private static final String PAR_BLOOM = "bloom_bits";
+    private static final String PAR_PROBE = "probe_period";
     private static String prefix = null;
     private UnreliableTransport transport;
     private int tid;
     private int mspastryid;
     private boolean cleaningScheduled = true;
     private static boolean _ALREADY_INSTALLED = false;
-    private List<BigInteger> myKeys;
-    private String size;
+    private KeyIndex<Boolean> myKeys;
+    //lookups atendidos por el nodo desde la ultima observacion
+    public int served = 0;
+    //filtro de Bloom con contadores de los trozos y réplicas que guarda el
+    //nodo (null si bloom_bits es 0), y ultimo digest recibido de cada vecino
+    //del leaf set, que llegan en los probes enviados cada probe_period
+    private CountingBloomFilter keyFilter;
+    private KeyIndex<long[]> leafDigests;
+    private long probePeriod;
+    private boolean probeScheduled = false;
     //______________________________________________________________________________________________
     /**
      * nodeId of this pastry node
      */
-    public BigInteger nodeId;
+    public UInt128 nodeId;
     public RoutingTable routingTable;
     public LeafSet leafSet;
 
@@ -147,13 +153,18 @@ public class MSPastryProtocol implements Cloneable, EDProtocol {
 
         //this.load = 0;
         //this.query_debit = 0;
-        routingTable = new RoutingTable(MSPastryCommonConfig.BITS / MSPastryCommonConfig.B, (int) Math.pow(2, MSPastryCommonConfig.B));
-        myKeys = new ArrayList<>();
+        routingTable = new RoutingTable(MSPastryCommonConfig.DIGITS, MSPastryCommonConfig.BASE);
+        myKeys = new KeyIndex<>();
         //LEAFSET DE 16
-        leafSet = new LeafSet(BigInteger.ZERO, MSPastryCommonConfig.L);
+        leafSet = new LeafSet(UInt128.ZERO, MSPastryCommonConfig.L);
         tid = Configuration.getPid(prefix + "." + PAR_TRANSPORT);
         this.mspastryid = Configuration.lookupPid(prefix.substring(prefix.lastIndexOf('.') + 1));
-        this.size = Configuration.getString("SIZE");
+        int bloomBits = Configuration.getInt(prefix + "." + PAR_BLOOM, 0);
+        if (bloomBits > 0) {
+            keyFilter = new CountingBloomFilter(bloomBits);
+            leafDigests = new KeyIndex<>();
+            probePeriod = Configuration.getLong(prefix + "." + PAR_PROBE, 10000);
+        }
     }
 
     //______________________________________________________________________________________________
@@ -173,12 +184,18 @@ public class MSPastryProtocol implements Cloneable, EDProtocol {
         final String PAR_L = "L";
 
         b = Configuration.getInt(prefix + "." + PAR_B, 4);
+        //the occupancy bitmaps of the routing table keep a row in one long
+        if (b < 1 || b > 6) {
+            throw new IllegalParameterException(prefix + "." + PAR_B,
+                    "must be between 1 and 6 (at most 64 columns per routing table row)");
+        }
         l = Configuration.getInt(prefix + "." + PAR_L, MSPastryCommonConfig.BITS / b);
         base = Util.pow2(b);
 
         MSPastryCommonConfig.B = b;
         MSPastryCommonConfig.L = l;
         MSPastryCommonConfig.BASE = base;
+        MSPastryCommonConfig.DIGITS = (MSPastryCommonConfig.BITS + b - 1) / b;
 
         e(MSPastryCommonConfig.info() + "\n");
         _ALREADY_INSTALLED = true;
@@ -207,45 +224,14 @@ public class MSPastryProtocol implements Cloneable, EDProtocol {
 
     //______________________________________________________________________________________________
     /**
-     * given one nodeId, it search through the network its node reference, by
-     * performing binary serach (we concern about the ordering of the network).
+     * given one nodeId, it returns its node reference by looking it up in the global NodeRegistry.
+     * Returns null for unknown or removed nodes.
      *
-     * @param searchNodeId BigInteger
+     * @param searchNodeId UInt128
      * @return Node
      */
-    private Node nodeIdtoNode(BigInteger searchNodeId) {
-        if (searchNodeId == null) {
-            return null;
-        }
-
-        int inf = 0;
-        int sup = Network.size() - 1;
-        int m;
-
-        while (inf <= sup) {
-            m = (inf + sup) / 2;
-
-            BigInteger mId = ((MSPastryProtocol) Network.get(m).getProtocol(mspastryid)).nodeId;
-
-            if (mId.equals(searchNodeId)) {
-                return Network.get(m);
-            }
-
-            if (mId.compareTo(searchNodeId) < 0) {
-                inf = m + 1;
-            } else {
-                sup = m - 1;
-            }
-        }
-        BigInteger mId;
-        for (int i = Network.size() - 1; i >= 0; i--) {
-            mId = ((MSPastryProtocol) Network.get(i).getProtocol(mspastryid)).nodeId;
-            if (mId.equals(searchNodeId)) {
-                return Network.get(i);
-            }
-        }
-
-        return null;
+    private Node nodeIdtoNode(UInt128 searchNodeId) {
+        return NodeRegistry.lookup(searchNodeId);
     }
 
     //______________________________________________________________________________________________
@@ -254,42 +240,53 @@ public class MSPastryProtocol implements Cloneable, EDProtocol {
      *
      * @param m Message
      */
+    /*
+        Este nodo es el numericamente mas cercano a la llave del mensaje
+        (el route() no encontro un nodo mas cercano), por lo tanto es el
+        responsable de la llave: guarda o busca el pedazo, o entrega
+        el mensaje al DFS si es una operacion sobre un archivo.
+    */
     public void receiveRoute(Message m) {
 
         System.out.println("Recibe mensaje NODODHT: "+this.nodeId.toString());
         System.out.println(m.messageTypetoString());
+        switch (m.messageType) {
+            case Message.MSG_LOOKUP:
+            case Message.MSG_INSERT:
+            case Message.MSG_LOOKUP_DFS:
+            case Message.MSG_INSERT_DFS:
+                MSPastryObserver.hopStore.add(m.nrHops - 1);
+                MSPastryObserver.timeStore.add(CommonState.getTime() - m.timestamp);
+                break;
+        }
         switch (m.messageType) {
             case Message.MSG_LOOKUP:
                 System.out.println("Se recibe lookup");
-                boolean iHaveIt = false;
-                for(BigInteger b:myKeys){
-                    if(b.compareTo(m.key)==0){
-                        iHaveIt = true;
-                        break;
-                    }
-                }
-                if(iHaveIt){
+                if(listener.hasChunk(m.key)){
                     System.out.println("Tengo la llave");
-                    performLookUp(m);
+                    MSPastryObserver.hit.add(1);
+                    performLookUp(m, null);
                 }
-                else{
+                else if(!askReplica(m)){
                     System.out.println("No tengo la llave");
+                    MSPastryObserver.miss.add(1);
                 }
                 break;
             case Message.MSG_INSERT:
                 System.out.println("Se recibe insert");
                 performInsertData(m);
                 break;
+            case Message.MSG_LOOKUP_DFS:
+            case Message.MSG_INSERT_DFS:
             case Message.MSG_RESULT:
-                System.out.println("Se recibe result");
                 deliver(m);
                 break;
         }
     }
 
     //RETURN THE NEXT HOP
-    private BigInteger checkTables(Message m) {
-        BigInteger next = null;
+    private UInt128 checkTables(Message m) {
+        UInt128 next = null;
         int r = Util.prefixLen(m.dest, this.nodeId); //PREFIJO COMUN
 
         if (r == MSPastryCommonConfig.DIGITS) {
@@ -297,60 +294,33 @@ public class MSPastryProtocol implements Cloneable, EDProtocol {
         }
 
         //SINO BUSCO EN TABLA DE RUTA
-        if (r > 0) {
-            char tmp = Util.put0(m.dest).charAt(r); //Next BIT
-
-            if (this.routingTable.get(r, Util.charToIndex(tmp)) != null) {
-                next = this.routingTable.get(r, Util.charToIndex(tmp));
-            }
-        } else {
-            char tmp = Util.put0(m.dest).charAt(r); //Next BIT
-            next = this.routingTable.get(r, Util.charToIndex(tmp));
-        }
+        next = this.routingTable.get(r, Util.digitAt(m.dest, r)); //Next DIGIT
 
         return next;
     }
 
-    private BigInteger checkLeafset(Message m) {
-        BigInteger next = null;
-        BigInteger[] allNodes;
-        BigInteger mindist;
-        BigInteger curdist;
+    private UInt128 checkLeafset(Message m) {
+        UInt128 next = null;
 
         //SI ESTA DENTRO DEL LEAFSET
         if (leafSet.encompass(m.dest)) {
-            int near = 0;
-            allNodes = leafSet.listAllNodes();
-
-            if (allNodes.length != 0) {
-                mindist = m.dest.subtract(allNodes[near]).abs();
-                for (int i = 1; i < allNodes.length; i++) {
-                    curdist = m.dest.subtract(allNodes[i]).abs();
-                    if (mindist.compareTo(curdist) > 0) {
-                        mindist = curdist;
-                        near = i;
-                    }
-                }
-                // PROXIMO SALTO EN EL LEAFSET 
-                next = allNodes[near];
-            } //else
-
+            // PROXIMO SALTO EN EL LEAFSET 
+            next = NodeRegistry.idOf(leafSet.closest(m.dest));
         }
         return next;
     }
 
-    private BigInteger checkClosest(BigInteger nexthopRT, BigInteger nexthopLS, BigInteger nexthopLSBorder) {
-        BigInteger ret = null;
+    private UInt128 checkClosest(UInt128 nexthopRT, UInt128 nexthopLS, UInt128 nexthopLSBorder) {
+        UInt128 ret = null;
 
         if (nexthopRT != null && nexthopLS != null) {//&& nexthopLSBorder != null){
-            BigInteger distRT = this.nodeId.subtract(nexthopRT).abs();
-            BigInteger distLS = this.nodeId.subtract(nexthopLS).abs();
+            int cmp = UInt128.compareRingDistance(this.nodeId, nexthopLS, nexthopRT);
 
-            if (distLS.compareTo(distRT) <= 0) //&& distLS.compareTo(distLSB)<= 0)
+            if (cmp <= 0) //&& distLS.compareTo(distLSB)<= 0)
             {
                 ret = nexthopLS;
             }
-            if (distRT.compareTo(distLS) <= 0) //&& distRT.compareTo(distLSB)<= 0)
+            if (cmp >= 0) //&& distRT.compareTo(distLSB)<= 0)
             {
                 ret = nexthopRT;
             }
@@ -367,13 +337,11 @@ public class MSPastryProtocol implements Cloneable, EDProtocol {
         return ret;
     }
 
-    private BigInteger imClosest(BigInteger dest, BigInteger next) {
-        BigInteger ret = null;
+    private UInt128 imClosest(UInt128 dest, UInt128 next) {
+        UInt128 ret = null;
 
         if (next != null) {
-            BigInteger distMe = dest.subtract(this.nodeId).abs();
-            BigInteger distNext = dest.subtract(next).abs();
-            if (distMe.compareTo(distNext) <= 0) {
+            if (UInt128.compareRingDistance(dest, this.nodeId, next) <= 0) {
                 ret = this.nodeId;
             } else {
                 ret = next;
@@ -382,19 +350,17 @@ public class MSPastryProtocol implements Cloneable, EDProtocol {
         return ret;
     }
 
-    private BigInteger closestOfLeafset(BigInteger dest) {
-        BigInteger ret = null;
-        BigInteger[] allNodes;
+    private UInt128 closestOfLeafset(UInt128 dest) {
+        UInt128 ret = null;
+        int n = leafSet.count();
 
-        allNodes = leafSet.listAllNodes();
-
-        if (allNodes.length > 0) {
-            BigInteger distLast = dest.subtract(allNodes[allNodes.length - 1]).abs();
-            BigInteger distFirst = dest.subtract(allNodes[0]).abs();
-            if (distFirst.compareTo(distLast) < 0) {
-                ret = allNodes[0];
+        if (n > 0) {
+            UInt128 first = NodeRegistry.idOf(leafSet.handleAt(0));
+            UInt128 last = NodeRegistry.idOf(leafSet.handleAt(n - 1));
+            if (UInt128.compareRingDistance(dest, first, last) < 0) {
+                ret = first;
             } else {
-                ret = allNodes[allNodes.length - 1];
+                ret = last;
             }
         }
 
@@ -423,7 +389,7 @@ public class MSPastryProtocol implements Cloneable, EDProtocol {
     private void route(Message m, Node srcNode) {
 
         // u("["+RoutingTable.truncateNodeId(nodeId)+"] received msg:[" + m.id + "] to route, with track: <");        o(m.traceToString(false) + ">");
-        BigInteger nexthop = null;
+        UInt128 nexthop = null;
 
         //leave a track of the transit of the message over this node
         m.nrHops++;
@@ -432,26 +398,35 @@ public class MSPastryProtocol implements Cloneable, EDProtocol {
         }
         m.tracks[m.trackSize - 1] = this.nodeId;
 
-        BigInteger curdist;
-        BigInteger[] allNodes;
-        BigInteger mindist;
+        //si este nodo tiene el trozo (o una réplica o una copia en su cache
+        //de camino) responde sin seguir ruteando
+        if (m.messageType == Message.MSG_LOOKUP && listener != null) {
+            boolean has = listener.hasChunk(m.key);
+            ByteBuffer cached = has ? null : listener.cachedOnPath(m.key);
+            if (has || cached != null) {
+                MSPastryObserver.hopStore.add(m.nrHops - 1);
+                MSPastryObserver.timeStore.add(CommonState.getTime() - m.timestamp);
+                MSPastryObserver.hit.add(1);
+                performLookUp(m, cached);
+                return;
+            }
+            //si un vecino del leaf set probablemente tiene el trozo (segun su
+            //digest) se le envía directo; si el digest se equivoco, sigue la ruta
+            if (this.nodeId.equals(m.redirectedTo)) {
+                if (!m.retry) {
+                    MSPastryObserver.falseRedirects++;
+                }
+            } else if (redirect(m)) {
+                return;
+            }
+        }
 
         if (leafSet.encompass(m.dest)) {
             // il nodeID j in Li t.c. |k-j| � minimo
-            int near = 0;
-            allNodes = leafSet.listAllNodes();
-
-            if (allNodes.length != 0) {
-
-                mindist = m.dest.subtract(allNodes[near]).abs();
-                for (int i = 1; i < allNodes.length; i++) {
-                    curdist = m.dest.subtract(allNodes[i]).abs();
-                    if (mindist.compareTo(curdist) > 0) {
-                        mindist = curdist;
-                        near = i;
-                    }
-                }
-                nexthop = allNodes[near];
+            int near = leafSet.closest(m.dest);
+
+            if (near != NodeRegistry.EMPTY) {
+                nexthop = NodeRegistry.idOf(near);
             } else {
                 nexthop = this.nodeId;
             }
@@ -464,35 +439,11 @@ public class MSPastryProtocol implements Cloneable, EDProtocol {
                 return;
             }
 
-            nexthop = this.routingTable.get(r, Util.charToIndex(Util.put0(m.dest).charAt(r)));
+            nexthop = this.routingTable.get(r, Util.digitAt(m.dest, r));
 
             if (nexthop == null) {
                 //il nodeID j in (Li U Ri) t.c. |k-j| < |k-i| && prefixLen(k,j)>=r
-
-                BigInteger[] l = this.leafSet.listAllNodes();
-
-                for (int jrow = 0; jrow < routingTable.rows; jrow++) {
-                    for (int jcol = 0; jcol < routingTable.cols; jcol++) {
-                        BigInteger nodejj = routingTable.get(jrow, jcol);
-                        if (nodejj != null) {
-                            if (cond1(m.dest, this.nodeId, nodejj)
-                                    && cond2(m.dest, nodejj, r)) {
-                                nexthop = nodejj;
-                                break;
-                            }
-                        }
-                    }
-                }
-
-                if (nexthop == null) {
-                    for (int j = 0; j < l.length; j++) {
-                        if (cond1(m.dest, this.nodeId, l[j])
-                                && cond2(m.dest, l[j], r)) {
-                            nexthop = l[j];
-                            break;
-                        }
-                    }
-                }
+                nexthop = closerWithPrefix(m.dest, r);
 
             } // end if (nexthop==null)
         }
@@ -522,7 +473,7 @@ public class MSPastryProtocol implements Cloneable, EDProtocol {
          * destinatario e precedente
          */
         if ((m.trackSize > 0) && (nexthop != null)) {
-            BigInteger src = m.tracks[m.trackSize - 1];
+            UInt128 src = m.tracks[m.trackSize - 1];
             if (!Util.nearer(m.dest, nexthop, src)) //if (!Util.nearer(m.dest,nexthop,src.nodeId))
             {
                 nexthop = this.nodeId;
@@ -530,19 +481,125 @@ public class MSPastryProtocol implements Cloneable, EDProtocol {
         }
 
         if ((!this.nodeId.equals(nexthop)) && (nexthop != null)) {    //send m to nexthop
+            Node dest = nodeIdtoNode(nexthop);
+            if (dest == null) {
+                // the next hop has left the network, the message is lost as it would be in transport
+                o("  [route]   next hop " + RoutingTable.truncateNodeId(nexthop) + " is gone");
+                return;
+            }
             transport = (UnreliableTransport) (Network.prototype).getProtocol(tid);
-            transport.send(nodeIdtoNode(this.nodeId), nodeIdtoNode(nexthop), m, mspastryid);
+            transport.send(nodeIdtoNode(this.nodeId), dest, m, mspastryid);
         } else {
             receiveRoute(m);
         }
 
     }
 
-    private static boolean cond1(BigInteger k, BigInteger i, BigInteger j) {
-        return k.subtract(j).abs().compareTo(k.subtract(i).abs()) < 0;
+    //______________________________________________________________________________________________
+    /**
+     * Rare case of the routing: the cell (r, digit of k at r) is empty. It returns, among the
+     * known nodes j with prefixLen(k,j) &gt;= r, the one closest to k along the ring, provided that it
+     * is closer than this node (null otherwise).
+     * <br>
+     * Since k and this node share exactly r digits, the candidates of the routing table are all
+     * the entries of the rows from r upward, and they can be found on the row occupancy bitmaps
+     * without scanning the cells:<br>
+     * - in row r the best entries are the nearest filled columns below and above the digit of k
+     * (wrapping around the row, as row 0 spans the whole ring);<br>
+     * - the entries of rows &gt; r share digit r with this node, so the only useful ones are the
+     * greatest and the least of them (only one is useful when comparing linearly, but along the
+     * ring the other one wins if the point opposite to k falls among them): they are in the
+     * first row, from r+1, having a filled column above (below) the digit of this node.<br>
+     * The column of the own digit of each row (rows below r included) may hold any node sharing
+     * one more digit with this node, so those entries are checked one by one. The leaf set is then
+     * checked for nodes closer than the best entry found.
+     *
+     * @param k UInt128 the key to route
+     * @param r int common prefix length of k and this nodeId
+     * @return UInt128
+     */
+    private UInt128 closerWithPrefix(UInt128 k, int r) {
+        UInt128 best = null;
+        int s;
+        for (int row = 0; row < r; row++) {
+            s = Util.digitAt(this.nodeId, row);
+            if ((routingTable.occupancy(row) & (1L << s)) != 0) {
+                UInt128 e = routingTable.get(row, s);
+                if (cond2(k, e, r)) {
+                    best = nearest(k, best, e);
+                }
+            }
+        }
+
+        int d = Util.digitAt(k, r);
+        s = Util.digitAt(this.nodeId, r);
+        long occ = routingTable.occupancy(r);
+
+        if ((occ & (1L << s)) != 0) {
+            best = nearest(k, best, routingTable.get(r, s));
+            occ &= ~(1L << s);
+        }
+        long below = occ & ((1L << d) - 1);
+        long above = (d == 63) ? 0 : occ & (-1L << (d + 1));
+        if (below == 0) {
+            below = above;
+        }
+        if (above == 0) {
+            above = below;
+        }
+        if (below != 0) {
+            best = nearest(k, best, routingTable.get(r, 63 - Long.numberOfLeadingZeros(below)));
+            best = nearest(k, best, routingTable.get(r, Long.numberOfTrailingZeros(above)));
+        }
+
+        boolean greatest = false, least = false;
+        for (int row = r + 1; row < routingTable.rows && !(greatest && least); row++) {
+            s = Util.digitAt(this.nodeId, row);
+            long cells = routingTable.occupancy(row);
+            if ((cells & (1L << s)) != 0) {
+                best = nearest(k, best, routingTable.get(row, s));
+            }
+            long higher = (s == 63) ? 0 : cells & (-1L << (s + 1));
+            if (!greatest && higher != 0) {
+                best = nearest(k, best, routingTable.get(row, 63 - Long.numberOfLeadingZeros(higher)));
+                greatest = true;
+            }
+            long lower = cells & ((1L << s) - 1);
+            if (!least && lower != 0) {
+                best = nearest(k, best, routingTable.get(row, Long.numberOfTrailingZeros(lower)));
+                least = true;
+            }
+        }
+
+        for (int j = 0; j < leafSet.count(); j++) {
+            UInt128 leaf = NodeRegistry.idOf(leafSet.handleAt(j));
+            if (cond2(k, leaf, r)) {
+                best = nearest(k, best, leaf);
+            }
+        }
+
+        if (best != null && cond1(k, this.nodeId, best)) {
+            return best;
+        }
+        return null;
+    }
+
+    //______________________________________________________________________________________________
+    /**
+     * the one between a and b nearer to k (a may be null)
+     */
+    private static UInt128 nearest(UInt128 k, UInt128 a, UInt128 b) {
+        if (a == null || UInt128.compareRingDistance(k, b, a) < 0) {
+            return b;
+        }
+        return a;
+    }
+
+    private static boolean cond1(UInt128 k, UInt128 i, UInt128 j) {
+        return UInt128.compareRingDistance(k, j, i) < 0;
     }
 
-    private static boolean cond2(BigInteger k, BigInteger j, int r) {
+    private static boolean cond2(UInt128 k, UInt128 j, int r) {
         return Util.prefixLen(k, j) >= r;
     }
 
@@ -559,8 +616,7 @@ public class MSPastryProtocol implements Cloneable, EDProtocol {
                 Node n2 = (Node) o2;
                 MSPastryProtocol p1 = (MSPastryProtocol) (n1.getProtocol(mspastryid));
                 MSPastryProtocol p2 = (MSPastryProtocol) (n2.getProtocol(mspastryid));
-                return Util.put0(p1.nodeId).compareTo(Util.put0(p2.nodeId));
-                // return p1.nodeId.compareTo(p2.nodeId);
+                return p1.nodeId.compareTo(p2.nodeId);
             }
 
             //______________________________________________________________________________________
@@ -615,6 +671,14 @@ public class MSPastryProtocol implements Cloneable, EDProtocol {
             this.setNodeId(urg.generate());
             sortNet();
         }
+        if (nodeIdtoNode(this.nodeId) == null) {
+            for (int i = 0; i < Network.size(); i++) {
+                if (get(i) == this) {
+                    NodeRegistry.register(this.nodeId, Network.get(i));
+                    break;
+                }
+            }
+        }
 
         Message joinrequest = Message.makeJoinRequest(null);
         joinrequest.body = new Message.BodyJoinRequestReply();
@@ -656,66 +720,73 @@ public class MSPastryProtocol implements Cloneable, EDProtocol {
 
     //______________________________________________________________________________________________
     /**
-     * This primitive provide the sending of the data to dest, by encapsulating
-     * it into a LOOKUP Message
+     * This primitive provide the sending of the data to the node responsible for the key, i.e. the
+     * live node with the nodeId numerically closest to it, by encapsulating it into a Message that
+     * is routed over the overlay starting from this node
      *
-     * @param recipient BigInteger
-     * @param data Object
+     * @param key UInt128
+     * @param data Object a Query, its messageType becomes the type of the Message
      */
-    /* Genera un evento en la capa de pastry para un nodo destinatario
-        Esta interfaz es usada por el DFS para generar eventos en la network
+    /* Genera un mensaje en la capa de pastry que se rutea hasta el nodo
+        responsable de la llave. Esta interfaz es usada por el DFS.
     */
-    public void send(BigInteger recipient, Object data) {
-        Message m = new Message(data);
-        m.dest = recipient;
+    public void send(UInt128 key, Object data) {
+        Query q = (Query) data;
+        Message m = new Message(q.messageType, q);
+        m.dest = key;
         m.src = this.nodeId;
-        m.key = ((Query) data).key;
-        m.value = ((Query) data).value;
+        m.key = q.key;
+        m.value = q.value;
         m.timestamp = CommonState.getTime();
-        m.messageType =((Query) data).messageType;
         System.out.println("Tipo de mensaje: "+m.messageTypetoString());
-        Node dest = nodeIdtoNode(m.dest);
-        if(dest==null){
-            System.out.println("Tenemos un problema");
-        }
-        System.out.println("Nodo " + this.nodeId.toString() + " Idnodo: " + dest.getID() + " Manda mensaje: " + m.value[0] + ";a: " + m.dest.toString());
-        EDSimulator.add(0, m, dest, mspastryid);
+        route(m, nodeIdtoNode(this.nodeId));
     }
     /*
-       Genera un evento en la capa de DFS para un nodo destinatario
-        Esta interfgaz es usada por el DFS para generar eventos en la network
-        el objetivo de esta función es intentar lograr el LookUP
-        pero no se debería hacer esto!
+        Reintento de un send(): el mensaje se entrega a un vecino vivo del
+        leaf set elegido al azar, que lo rutea desde ahi, asi no repite la
+        ruta (y el salto) por la que se perdio el intento anterior. Si el
+        responsable no tiene el trozo lo pide a la réplica de su leaf set
+        (ver askReplica()). Sin vecinos vivos se rutea desde este nodo.
     */
-    public void send2(BigInteger recipient, Object data) {
-        Message m = new Message(data);
-        m.dest = recipient;
+    public void sendAlternate(UInt128 key, Object data) {
+        Query q = (Query) data;
+        Message m = new Message(q.messageType, q);
+        m.dest = key;
         m.src = this.nodeId;
-        m.key = ((Query) data).key;
-        m.value = ((Query) data).value;
+        m.key = q.key;
+        m.value = q.value;
         m.timestamp = CommonState.getTime();
-        m.messageType =((Query) data).messageType;
-        System.out.println("Tipo de mensaje: "+m.messageTypetoString());
-        Node dest = nodeIdtoNode(m.dest);
-        if(dest==null){
-            System.out.println("Tenemos un problema");
+        m.retry = true;
+        int n = leafSet.count();
+        int first = n == 0 ? 0 : CommonState.r.nextInt(n);
+        for (int i = 0; i < n; i++) {
+            Node leaf = NodeRegistry.nodeOf(leafSet.handleAt((first + i) % n));
+            if (leaf != null && leaf.isUp()) {
+                transport = (UnreliableTransport) (Network.prototype).getProtocol(tid);
+                transport.send(nodeIdtoNode(this.nodeId), leaf, m, mspastryid);
+                return;
+            }
         }
-        System.out.println("Nodo " + this.nodeId.toString() + " Idnodo: " + dest.getID() + " Manda mensaje: " + m.value[0] + ";a: " + m.dest.toString());
-        EDSimulator.add(0, data, dest, 4);
+        route(m, nodeIdtoNode(this.nodeId));
     }
     /*
         Se envia un mensaje directo de un nodo pastry a otro, saltandose
         el routing de pastry
     */
-    public void sendDirect(BigInteger receiver, Object data) {
-        Message m = Message.makeLookUp(data);
+    public void sendDirect(UInt128 receiver, Object data) {
+        Query q = (Query) data;
+        Message m = new Message(q.messageType, q);
         m.dest = receiver;//((MSPastryProtocol)n.getProtocol(mspastryid)).nodeId;
         m.src = this.nodeId;
-        m.key = ((Query) data).key;
-        m.value = ((Query) data).value;
+        m.key = q.key;
+        m.value = q.value;
         m.timestamp = CommonState.getTime();
+        Node dest = nodeIdtoNode(receiver);
+        if (dest == null) {
+            return;
+        }
         transport = (UnreliableTransport) (Network.prototype).getProtocol(tid);
-        transport.send(nodeIdtoNode(this.nodeId), nodeIdtoNode(receiver), m, mspastryid);
+        transport.send(nodeIdtoNode(this.nodeId), dest, m, mspastryid);
     }
 
     //______________________________________________________________________________________________
@@ -736,7 +807,8 @@ public class MSPastryProtocol implements Cloneable, EDProtocol {
             return;
         }
 
-        int n = Util.prefixLen(nodeId, body.joiner) + 1;
+        // row n of this node is made of nodes sharing n digits with the joiner too
+        int n = Util.prefixLen(nodeId, body.joiner);
 
         body.rt.copyRowFrom(myP.routingTable, n);
     }
@@ -747,15 +819,18 @@ public class MSPastryProtocol implements Cloneable, EDProtocol {
      */
     private void probeLS() {
         //e("probeLS\n");
-        BigInteger[] leafs = this.leafSet.listAllNodes();
-
-        for (int i = 0; i < leafs.length; i++) {
+        long[] digest = keyFilter == null ? null : keyFilter.digest();
+        for (int i = 0; i < this.leafSet.count(); i++) {
+            Node dest = NodeRegistry.nodeOf(this.leafSet.handleAt(i));
+            if (dest == null) {
+                continue;
+            }
             transport = (UnreliableTransport) (Network.prototype).getProtocol(tid);
 
-            Message m = new Message(Message.MSG_LSPROBEREQUEST, null);
+            Message m = new Message(Message.MSG_LSPROBEREQUEST, digest);
             m.dest = this.nodeId; //using m.dest to contain the source of the probe request
 
-            transport.send(nodeIdtoNode(this.nodeId), nodeIdtoNode(leafs[i]), m, mspastryid);
+            transport.send(nodeIdtoNode(this.nodeId), dest, m, mspastryid);
         }
 
     }
@@ -774,10 +849,9 @@ public class MSPastryProtocol implements Cloneable, EDProtocol {
         //System.out.println("Join REPLY");
 
         Message.BodyJoinRequestReply reply = (Message.BodyJoinRequestReply) m.body;
-        this.routingTable = (RoutingTable) reply.rt.clone();
         this.routingTable = reply.rt;
 
-        BigInteger[] l = reply.ls.listAllNodes();
+        UInt128[] l = reply.ls.listAllNodes();
 
         for (int j = 0; j < l.length; j++) {
             int row, col;
@@ -786,78 +860,153 @@ public class MSPastryProtocol implements Cloneable, EDProtocol {
 
             //System.out.println("NODO: " + RoutingTable.truncateNodeId(this.nodeId) + " LS: " + RoutingTable.truncateNodeId(l[j]));
             if (!this.nodeId.equals(l[j])) {
-                col = Util.charToIndex(Util.put0(l[j]).charAt(row)); /// prima era:col = Util.charToIndex(Util.put0(l[j]).charAt(row + 1));
+                col = Util.digitAt(l[j], row);
                 this.routingTable.set(row, col, l[j]);
             }
         }
 
         // poch� this.leafSet e' vuoto, la add() viene fatta tramite assegnazione diretta.
         this.leafSet = (LeafSet) reply.ls.clone();
-        this.leafSet.nodeId = this.nodeId;
+        this.leafSet.setNodeId(this.nodeId);
 
         probeLS();
 
     }
     /*
         Cuando recibe un evento de insert con un pedazo de una cancion
-        genera el archivo y directorios para manejar los pedazos de canción
-        por los que tiene que responder el nodo.
-        El arraylist myKeys tiene las llaves de las que es responsable.
+        lo guarda en el ChunkStore del DFS del nodo (una sola vez si el
+        trozo se repite, ver DistributedFileSystem.storeChunk).
+        El indice myKeys tiene las llaves de las que es responsable.
     */
     private void performInsertData(Message m) {
         Query q = (Query) m.body;
-        File file = new File("./"+nodeId.toString());
-        file.mkdir();
-        File file2 = new File(file.getAbsolutePath()+"/"+q.key.toString()+".mp3");
         try {
-            
-            BufferedWriter bw = new BufferedWriter(new FileWriter(file2));
-            bw.write(new String((byte[])q.body));
-            bw.close();
+            if (listener.storeChunk(q.key, (ByteBuffer) q.body)) {
+                myKeys.put(q.key, Boolean.TRUE);
+            }
         } catch (IOException ex) {
             ex.printStackTrace();
         }
-        myKeys.add(q.key);
     }
     
-    /*función para calcular a partir de un i, el nodeId del nodo i-esimo*/
-    public BigInteger getNodeId(int i){
-        MSPastryProtocol node = (MSPastryProtocol) Network.get(i).getProtocol(3);
-        return node.nodeId;
+    /*
+        hasta n nodos del leaf set, los mas cercanos a este nodo primero
+        (candidatos para las réplicas de sus trozos)
+    */
+    public UInt128[] leafNeighbours(int n){
+        return leafSet.neighbours(n);
     }
+
+    /*true si el nodo envía digests de sus llaves a su leaf set (bloom_bits > 0)*/
+    boolean filtersKeys(){
+        return keyFilter != null;
+    }
+
+    /*número de llaves de las que es responsable el nodo*/
+    public int keyCount(){
+        return myKeys.size();
+    }
+
+    /*el DFS guardo un trozo o una réplica: se agrega al filtro de Bloom*/
+    public void keyStored(UInt128 key){
+        if (keyFilter != null) {
+            keyFilter.add(key);
+        }
+    }
+
+    /*el DFS cerro su ChunkStore: el nodo ya no guarda ningun trozo*/
+    public void keysReleased(){
+        if (keyFilter != null) {
+            keyFilter.clear();
+        }
+    }
+
     /*
-        Ocupa el tamaño dle DHT para asignar un entero a una llave,
-        esto se hace con el objetivo de calcular que nodo i-esimo
-        le corresponde que llave
+        Reintento de lookup de un trozo que el responsable no tiene (se perdio
+        o el responsable es nuevo): lo envía al vecino vivo del leaf set mas
+        cercano a la llave, que es el que guarda la réplica. Devuelve false si
+        no es un reintento, si ya fue redirigido o si no hay vecinos vivos.
     */
-    public int remainder(BigInteger i){
-        return i.remainder(new BigInteger(this.size)).intValueExact();
+    private boolean askReplica(Message m){
+        if (!m.retry || m.redirectedTo != null) {
+            return false;
+        }
+        UInt128 best = null;
+        for (int i = 0; i < leafSet.count(); i++) {
+            UInt128 leaf = NodeRegistry.idOf(leafSet.handleAt(i));
+            Node n = NodeRegistry.nodeOf(leafSet.handleAt(i));
+            if (n == null || !n.isUp()) {
+                continue;
+            }
+            if (best == null || UInt128.compareRingDistance(m.key, leaf, best) < 0) {
+                best = leaf;
+            }
+        }
+        if (best == null) {
+            return false;
+        }
+        m.redirectedTo = best;
+        transport = (UnreliableTransport) (Network.prototype).getProtocol(tid);
+        transport.send(nodeIdtoNode(this.nodeId), nodeIdtoNode(best), m, mspastryid);
+        return true;
     }
-    
+
     /*
-        Al llegar un lookup de una llave de la que es responsable
-        recupera los datos del archivo que genero y los envía
+        Lookup de un trozo que el nodo no tiene: lo envía al vecino del leaf
+        set mas cercano a la llave cuyo digest dice que probablemente guarda
+        el trozo (el responsable o uno con una réplica), sin pasar por los
+        saltos que faltan hasta el responsable. Asi tambien se evita la falla
+        de un responsable nuevo que aun no tiene los trozos de sus llaves.
+        Devuelve false si ningun vecino lo tiene o si el lookup ya fue
+        redirigido una vez.
+    */
+    private boolean redirect(Message m){
+        if (keyFilter == null || m.redirectedTo != null) {
+            return false;
+        }
+        UInt128 best = null;
+        for (int i = 0; i < leafSet.count(); i++) {
+            UInt128 leaf = NodeRegistry.idOf(leafSet.handleAt(i));
+            Node n = NodeRegistry.nodeOf(leafSet.handleAt(i));
+            long[] digest = leafDigests.get(leaf);
+            if (n == null || !n.isUp() || digest == null || !CountingBloomFilter.mightContain(digest, m.key)) {
+                continue;
+            }
+            if (best == null || UInt128.compareRingDistance(m.key, leaf, best) < 0) {
+                best = leaf;
+            }
+        }
+        if (best == null) {
+            return false;
+        }
+        m.redirectedTo = best;
+        MSPastryObserver.redirected++;
+        transport = (UnreliableTransport) (Network.prototype).getProtocol(tid);
+        transport.send(nodeIdtoNode(this.nodeId), nodeIdtoNode(best), m, mspastryid);
+        return true;
+    }
+
+    /*
+        Al llegar un lookup de una llave de la que es responsable (o de la
+        que tiene una réplica) recupera los bytes del ChunkStore y los envía
         directamente con un mensaje de resultado al nodo que pidio los
         resultados, con el objetivo de que lleguen al DFS
-        y este reconstruya el archivo
+        y este reconstruya el archivo. El DFS cuenta la carga atendida y
+        decide si replicar el trozo. cached es la copia del cache de camino
+        cuando el nodo no guarda el trozo (null si lo guarda).
     */
-    private void performLookUp(Message m) {
-        File file = new File("./"+nodeId.toString());
-         File file2 = new File(file.getAbsolutePath()+"/"+m.key.toString()+".mp3");
+    private void performLookUp(Message m, ByteBuffer cached) {
         try {
-            BufferedReader br = new BufferedReader(new FileReader(file2));
-            String temp = "";
-            while(br.ready()){
-                temp=temp+br.readLine();
+            ByteBuffer chunk = cached != null ? cached : listener.getChunkStore().get(m.key);
+            if (chunk == null) {
+                return;
             }
-            br.close();
-            byte[] chunk  = temp.getBytes();
+            served++;
+            listener.served(m.key, Arrays.copyOf(m.tracks, m.trackSize));
             Query q = (Query) m.body;
             q.body = chunk;
             q.messageType = Query.MSG_RESULT;
-            m.body = q;
-            m.messageType = Message.MSG_RESULT;
-            sendDirect(m.src,m);
+            sendDirect(m.src,q);
         } catch (IOException ex) {
             ex.printStackTrace();
         }
@@ -869,15 +1018,20 @@ public class MSPastryProtocol implements Cloneable, EDProtocol {
      * @param m Message
      */
     private void performLSProbeRequest(Message m) {
-        BigInteger cell = null;
+        UInt128 cell = null;
         this.leafSet.push(m.dest);
+        if (leafDigests != null && m.body != null) {
+            leafDigests.put(m.dest, (long[]) m.body);
+            //the push may have moved another node out of the leaf set
+            pruneDigests();
+        }
 
         if (!this.nodeId.equals(m.dest)) {
             int row = Util.prefixLen(this.nodeId, m.dest);
-            int col = Util.charToIndex(Util.put0(m.dest).charAt(row)); /// prima era:col = Util.charToIndex(Util.put0(l[j]).charAt(row + 1));
+            int col = Util.digitAt(m.dest, row);
             cell = this.routingTable.get(row, col);
 
-            if (cell != null) {
+            if (cell != null && nodeIdtoNode(cell) != null) {
                 transport = (UnreliableTransport) (Network.prototype).getProtocol(tid);
                 long oldLat = transport.getLatency(nodeIdtoNode(this.nodeId), nodeIdtoNode(cell));
                 long newLat = transport.getLatency(nodeIdtoNode(this.nodeId), nodeIdtoNode(m.dest));
@@ -889,6 +1043,27 @@ public class MSPastryProtocol implements Cloneable, EDProtocol {
         }
     }
 
+    //______________________________________________________________________________________________
+    /**
+     * keeps only the digests of the current members of the leaf set, so digests of failed nodes
+     * or of nodes that moved out do not pile up, and a node that comes back is not redirected to
+     * with an old digest (it gets a new one with its next probe)
+     */
+    private void pruneDigests() {
+        if (leafDigests == null) {
+            return;
+        }
+        KeyIndex<long[]> current = new KeyIndex<>();
+        for (int i = 0; i < leafSet.count(); i++) {
+            UInt128 leaf = NodeRegistry.idOf(leafSet.handleAt(i));
+            long[] digest = leafDigests.get(leaf);
+            if (digest != null) {
+                current.put(leaf, digest);
+            }
+        }
+        leafDigests = current;
+    }
+
     private void rebuiltLS() {
         int sz = Network.size();
         int currentNode = CommonState.getNode().getIndex();
@@ -940,32 +1115,33 @@ public class MSPastryProtocol implements Cloneable, EDProtocol {
     private void cleaningService(Node myNode, int myPid, Message m) {
         // cleaning tables...
 
-        BigInteger bCheck;
+        int bCheck;
         Node nCheck;
         for (int irow = 0; irow < routingTable.rows; irow++) {
             for (int icol = 0; icol < routingTable.cols; icol++) {
-                bCheck = routingTable.get(irow, icol);
-                nCheck = nodeIdtoNode(bCheck);
+                bCheck = routingTable.getHandle(irow, icol);
+                nCheck = NodeRegistry.nodeOf(bCheck);
                 if ((nCheck == null) || (!nCheck.isUp())) {
-                    routingTable.set(irow, icol, null);
+                    routingTable.setHandle(irow, icol, RoutingTable.EMPTY);
                 }
             }
         }
 
-        BigInteger[] bCheck2 = leafSet.listAllNodes();
+        int[] bCheck2 = leafSet.listAllHandles();
         for (int i = 0; i < bCheck2.length; i++) {
-            nCheck = nodeIdtoNode(bCheck2[i]);
+            nCheck = NodeRegistry.nodeOf(bCheck2[i]);
 
             //REMUEVE SI LA ENTRADA ES IGUAL AL NODO Y SI EL NODO ESTA CAIDO
             if ((nCheck == null) || (!nCheck.isUp())) {
                 //System.out.println("ENTRO A REMOVER LEAFNODE");
-                leafSet.removeNodeId(bCheck2[i]);
+                leafSet.removeNodeId(NodeRegistry.idOf(bCheck2[i]));
             }
 
         }
 
         //REPARANDO LEAFSET
         rebuiltLS();
+        pruneDigests();
 
         long delay = 1000 + CommonState.r.nextLong(1000);
         EDSimulator.add(delay, m, myNode, myPid);
@@ -981,14 +1157,15 @@ public class MSPastryProtocol implements Cloneable, EDProtocol {
      */
     /*
         Maneja los eventos:
-        Evento lookup: si llega un lookup, revisa si es responsable
-        si no es responsable, envía la consulta a quien cree que es responsable
-        por la llave
-        Evento LookUp_DFS: Si recibe este evento se lo pasa a la capa DFS
-        Evento INSERT: Si recibe este evento es pq se tiene que hacer responsable
-        de una llave, y hace un INSERT entre sus datos
-        Evento Result: Si recibe un evento de result, se lo pasa a la capa superior
-        del DFS
+        Eventos lookup, insert, LookUp_DFS e Insert_DFS: se rutean hacia la llave,
+        el nodo numericamente mas cercano a ella los procesa en receiveRoute()
+        (LookUp_DFS e Insert_DFS se pasan a la capa DFS de ese nodo)
+        Eventos Result y Manifest: llegan directo al nodo que pidio los datos,
+        se los pasa a la capa superior del DFS
+        Eventos Replica: llegan directo al nodo que guardara la réplica, se
+        pasan al DFS
+        Eventos ProbePoll: cada probe_period (con bloom_bits > 0) envía al
+        leaf set un probe con el digest de las llaves que guarda el nodo
     */
     @Override
     public void processEvent(Node myNode, int myPid, Object event) {
@@ -999,6 +1176,12 @@ public class MSPastryProtocol implements Cloneable, EDProtocol {
             EDSimulator.add(delay, service, myNode, myPid);
             cleaningScheduled = true;
         }
+        if (keyFilter != null && !probeScheduled) {
+            Message poll = new Message(Message.MSG_PROBEPOLL, "");
+            poll.dest = this.nodeId;
+            EDSimulator.add(CommonState.r.nextLong(probePeriod), poll, myNode, myPid);
+            probeScheduled = true;
+        }
 
         /**
          * Parse message content Activate the correct event manager fot the
@@ -1011,35 +1194,16 @@ public class MSPastryProtocol implements Cloneable, EDProtocol {
         System.out.println(m.messageTypetoString());
         switch (m.messageType) {
             case Message.MSG_LOOKUP:
-                System.out.println("Se recibe lookup");
-                boolean iHaveIt = false;
-                for(BigInteger b:myKeys){
-                    if(b.compareTo(m.key)==0){
-                        iHaveIt = true;
-                        break;
-                    }
-                }
-                if(iHaveIt){
-                    System.out.println("Tengo la llave");
-                    performLookUp(m);
-                }
-                else{
-                    System.out.println("No tengo la llave");
-                    m.messageType = Message.MSG_LOOKUP;
-                    System.out.println("Enviamos consulta a :"+getNodeId(remainder(m.key)));
-                    send(getNodeId(remainder(m.key)),m.body);
-                }
-                break;
-            case Message.MSG_LOOKUP_DFS:
-                m.messageType = Message.MSG_LOOKUP_DFS;
-                this.listener.receive(m);
-                break;
             case Message.MSG_INSERT:
-                System.out.println("Se recibe insert");
-                performInsertData(m);
+            case Message.MSG_LOOKUP_DFS:
+            case Message.MSG_INSERT_DFS:
+                route(m, myNode);
                 break;
             case Message.MSG_RESULT:
-                System.out.println("Se recibe result");
+            case Message.MSG_MANIFEST:
+            case Message.MSG_REPLICA:
+            case Message.MSG_CACHE:
+                System.out.println("Se recibe "+m.messageTypetoString());
                 deliver(m);
                 break;
             case Message.MSG_JOINREQUEST:
@@ -1058,6 +1222,11 @@ public class MSPastryProtocol implements Cloneable, EDProtocol {
             case Message.MSG_LSPROBEREQUEST:
                 performLSProbeRequest(m);
                 break;
+
+            case Message.MSG_PROBEPOLL:
+                probeLS();
+                EDSimulator.add(probePeriod, m, myNode, myPid);
+                break;
         }
 
     }
@@ -1066,11 +1235,11 @@ public class MSPastryProtocol implements Cloneable, EDProtocol {
     /**
      * set the current NodeId
      *
-     * @param tmp BigInteger
+     * @param tmp UInt128
      */
-    public void setNodeId(BigInteger tmp) {
+    public void setNodeId(UInt128 tmp) {
         this.nodeId = tmp;
-        leafSet.nodeId = tmp;
+        leafSet.setNodeId(tmp);
 
     }
 
@@ -1,7 +1,5 @@
 package peersim.pastry;
 
-import java.math.*;
-
 /**
  *
  * Message class provide all functionalities to magage the various messages, principally LOOKUP
@@ -11,6 +9,11 @@ import java.math.*;
  * (application messages)<BR>
  * - MSG_LOOKUP: indicates that the body Object containes information to application level of the
  * recipient<BR>
+ * - MSG_INSERT, MSG_LOOKUP_DFS, MSG_INSERT_DFS: like MSG_LOOKUP, routed to the node responsible
+ * for the dest key, the body is a Query<BR>
+ * - MSG_RESULT, MSG_MANIFEST: replies sent directly to the node that asked for the data<BR>
+ * - MSG_REPLICA: a replica of a chunk, sent directly to the node that will hold it<BR>
+ * - MSG_CACHE: a copy of a popular chunk, sent directly to the previous hop of its lookups<BR>
  * <br>
  * (service internal protocol messages)<br>
  * - MSG_JOINREQUEST: message containing a join request of a node, the message is passed between
@@ -19,6 +22,7 @@ import java.math.*;
  * - MSG_LSPROBEREQUEST:according to protocol, the body transport information related to a probe request message  <br>
  * - MSG_LSPROBEREPLY: not used in the current implementation<br>
  * - MSG_SERVICEPOLL: internal message used to provide cyclic cleaning service of dead nodes<br>
+ * - MSG_PROBEPOLL: internal message used to send the leaf set probes (with the key digest) periodically<br>
  *
  * The body for message types MSG_JOINREQUEST and MSG_JOINREPLY if defined by the class
  * Message.BodyJoinRequestReply<br>
@@ -44,7 +48,7 @@ public class Message {
         /**
          * Use joiner only in case of a JoinRequest
          */
-        java.math.BigInteger joiner;
+        UInt128 joiner;
 
         /**
          * Use leafset only in case of a JoinReply
@@ -107,6 +111,15 @@ public class Message {
     
     public static final int MSG_RESULT        = 7;
     public static final int MSG_LOOKUP_DFS    = 8;
+    public static final int MSG_INSERT_DFS    = 9;
+    public static final int MSG_MANIFEST      = 10;
+    public static final int MSG_REPLICA       = 11;
+    public static final int MSG_CACHE         = 12;
+
+    /**
+     * Internal Message: periodic leaf set probe
+     */
+    public static final int MSG_PROBEPOLL     = 13;
 
     /**
      * Identify the type of this message
@@ -129,14 +142,27 @@ public class Message {
     /**
      * Recipient address of the message
      */
-    public BigInteger dest;
+    public UInt128 dest;
 
-    public BigInteger key;
+    public UInt128 key;
     public String[] value;
     /**
      * Source address of the message: has to be filled ad application level
      */
-    public BigInteger src;
+    public UInt128 src;
+
+    /**
+     * leaf a lookup was sent to because its key digest matched the key (see MSPastryProtocol), null
+     * if the lookup was not redirected. A lookup is redirected at most once.
+     */
+    public UInt128 redirectedTo = null;
+
+    /**
+     * true if the message is a retry of a lookup whose answer did not arrive in time (see
+     * MSPastryProtocol.sendAlternate): if the responsible node does not have the chunk it asks the
+     * replica in its leaf set.
+     */
+    public boolean retry = false;
 
 
     /**
@@ -152,7 +178,7 @@ public class Message {
     /**
      * Available to contains the path of the message
      */
-    protected BigInteger[] tracks = null;
+    protected UInt128[] tracks = null;
 
     /**
      * Available to contains the timestamp of the (creation date of the) message
@@ -188,7 +214,7 @@ public class Message {
      */
     public Message(int messageType, Object body) {
         this.id = (ID_GENERATOR++);
-        this.tracks = new BigInteger[MAX_TRACK];
+        this.tracks = new UInt128[MAX_TRACK];
         this.messageType = messageType;
         this.body = body;
     }
@@ -282,6 +308,11 @@ public class Message {
        case MSG_RESULT: return "MSG_RESULT";
        case MSG_INSERT: return "MSG_INSERT";
        case MSG_LOOKUP_DFS: return "MSG_LOOKUP_DFS";
+       case MSG_INSERT_DFS: return "MSG_INSERT_DFS";
+       case MSG_MANIFEST: return "MSG_MANIFEST";
+       case MSG_REPLICA: return "MSG_REPLICA";
+       case MSG_CACHE: return "MSG_CACHE";
+       case MSG_PROBEPOLL: return "MSG_PROBEPOLL";
        default : return ""+messageType;
        }
    }
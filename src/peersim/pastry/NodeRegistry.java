@@ -0,0 +1,168 @@
+package peersim.pastry;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+import peersim.core.Node;
+
+//__________________________________________________________________________________________________
+/**
+ * Global index from nodeId to the peersim Node that owns it. It replaces the binary search over
+ * the (sorted) Network: entries are added when a nodeId is assigned (CustomDistribution, Turbulence,
+ * join) and removed when Turbulence fails a node, so resolving the next hop is a single hash lookup
+ * and does not depend on the ordering of the Network.
+ * <br>
+ * Every nodeId known to the registry also gets an int handle (its position in the internal
+ * arrays). Routing tables and leaf sets store these handles instead of references to the nodeIds,
+ * -1 meaning an empty entry. A handle is never reused: when a node is removed only its Node
+ * reference is cleared, so stale handles kept in other tables still resolve to the right nodeId
+ * and to a null Node.
+ */
+public class NodeRegistry {
+
+    //______________________________________________________________________________________________
+    /**
+     * handle of an empty entry
+     */
+    public static final int EMPTY = -1;
+
+    //______________________________________________________________________________________________
+    private static final HashMap<UInt128, Integer> handles = new HashMap<UInt128, Integer>();
+    private static UInt128[] ids = new UInt128[1024];
+    private static Node[] nodes = new Node[1024];
+    private static int count = 0;
+    private static int live = 0;
+
+    //______________________________________________________________________________________________
+    private NodeRegistry() {
+    }
+
+    //______________________________________________________________________________________________
+    /**
+     * associates the nodeId with the node (an older association of the same nodeId is replaced)
+     * @param nodeId UInt128
+     * @param n Node
+     * @return int the handle of the nodeId
+     */
+    public static int register(UInt128 nodeId, Node n) {
+        if (nodeId == null)
+            return EMPTY;
+        int h = intern(nodeId);
+        if (nodes[h] == null && n != null)
+            live++;
+        if (nodes[h] != null && n == null)
+            live--;
+        nodes[h] = n;
+        return h;
+    }
+
+    //______________________________________________________________________________________________
+    /**
+     * removes the node of the nodeId from the index, from now on lookup(nodeId) returns null. The
+     * handle of the nodeId stays valid.
+     * @param nodeId UInt128
+     */
+    public static void unregister(UInt128 nodeId) {
+        int h = handleOf(nodeId);
+        if (h == EMPTY)
+            return;
+        register(nodeId, null);
+    }
+
+    //______________________________________________________________________________________________
+    /**
+     * returns the handle of the nodeId, creating it (with no Node associated) if needed
+     * @param nodeId UInt128 if null EMPTY is returned
+     * @return int
+     */
+    public static int intern(UInt128 nodeId) {
+        if (nodeId == null)
+            return EMPTY;
+        Integer h = handles.get(nodeId);
+        if (h != null)
+            return h;
+        if (count == ids.length) {
+            ids = Arrays.copyOf(ids, count * 2);
+            nodes = Arrays.copyOf(nodes, count * 2);
+        }
+        ids[count] = nodeId;
+        handles.put(nodeId, count);
+        return count++;
+    }
+
+    //______________________________________________________________________________________________
+    /**
+     * returns the handle of the nodeId, or EMPTY if the nodeId is unknown
+     * @param nodeId UInt128
+     * @return int
+     */
+    public static int handleOf(UInt128 nodeId) {
+        if (nodeId == null)
+            return EMPTY;
+        Integer h = handles.get(nodeId);
+        return h == null ? EMPTY : h;
+    }
+
+    //______________________________________________________________________________________________
+    /**
+     * returns the nodeId of the handle (null for EMPTY)
+     * @param h int
+     * @return UInt128
+     */
+    public static UInt128 idOf(int h) {
+        return h < 0 ? null : ids[h];
+    }
+
+    //______________________________________________________________________________________________
+    /**
+     * returns the node of the handle, null for EMPTY or for removed nodes
+     * @param h int
+     * @return Node
+     */
+    public static Node nodeOf(int h) {
+        return h < 0 ? null : nodes[h];
+    }
+
+    //______________________________________________________________________________________________
+    /**
+     * returns the node having the specified nodeId, or null if it is unknown (or it was removed)
+     * @param nodeId UInt128
+     * @return Node
+     */
+    public static Node lookup(UInt128 nodeId) {
+        return nodeOf(handleOf(nodeId));
+    }
+
+    //______________________________________________________________________________________________
+    /**
+     * number of registered (not removed) nodes
+     * @return int
+     */
+    public static int size() {
+        return live;
+    }
+
+    //______________________________________________________________________________________________
+    /**
+     * number of handles given so far
+     * @return int
+     */
+    public static int handleCount() {
+        return count;
+    }
+
+    //______________________________________________________________________________________________
+    /**
+     * empties the index, to be called when a new network is initialized
+     */
+    public static void clear() {
+        handles.clear();
+        Arrays.fill(ids, 0, count, null);
+        Arrays.fill(nodes, 0, count, null);
+        count = 0;
+        live = 0;
+    }
+    //______________________________________________________________________________________________
+
+} // End of class
+//______________________________________________________________________________________________
@@ -16,7 +16,7 @@ package peersim.pastry;
  * @version 1.0
  */
 
-import java.math.BigInteger;
+import java.util.Arrays;
 
 public class RoutingTable implements Cloneable{
 
@@ -24,24 +24,95 @@ public class RoutingTable implements Cloneable{
     /**
      * Use this to indicates a entry in the table is not filled
      */
-    public static final BigInteger EMPTY = null;
+    public static final int EMPTY = NodeRegistry.EMPTY;
 
     //______________________________________________________________________________________________
     /**
-     * all these methods are public in order to provide the fastest possible access
+     * Cells contain handles of the NodeRegistry, not the nodeIds themselves.
+     * Rows are allocated at the first set() in that row (table[i] == null means an all-EMPTY
+     * row). A row can be shared with other tables (after clone() or copyRowFrom()): in that case
+     * it is copied before being modified (copy on write).
      */
-    public BigInteger[][] table = null; //table[i][j] = EMPTY indicates empty cell
+    private int[][] table = null;
+
+    /**
+     * one bitmap per row, bit j is set iff table[i][j] is not EMPTY (cols must be at most 64, i.e.
+     * B at most 6)
+     */
+    private long[] occupancy = null;
+
+    /**
+     * bit i is set iff row i may be shared with another table
+     */
+    private long[] shared = null;
+
     public int rows = 0;
     public int cols = 0;
 
     //______________________________________________________________________________________________
-    public BigInteger get(int rows, int cols) {
-        return table[rows][cols];
+    public UInt128 get(int rows, int cols) {
+        return NodeRegistry.idOf(getHandle(rows, cols));
     }
 
     //______________________________________________________________________________________________
-    public void set(int row, int column, BigInteger value) {
-    	table[row][column] = value;
+    public int getHandle(int row, int col) {
+        if ((occupancy[row] & (1L << col)) == 0)
+            return EMPTY;
+        return table[row][col];
+    }
+
+    //______________________________________________________________________________________________
+    /**
+     * bitmap of the filled cells of the row
+     * @param row int
+     * @return long
+     */
+    public long occupancy(int row) {
+        return occupancy[row];
+    }
+
+    //______________________________________________________________________________________________
+    public void set(int row, int column, UInt128 value) {
+    	setHandle(row, column, NodeRegistry.intern(value));
+    }
+
+    //______________________________________________________________________________________________
+    public void setHandle(int row, int column, int handle) {
+        if (handle == EMPTY) {
+            if ((occupancy[row] & (1L << column)) == 0)
+                return;
+            occupancy[row] &= ~(1L << column);
+            if (occupancy[row] == 0) {
+                // last entry of the row: release it
+                table[row] = null;
+                unshare(row);
+                return;
+            }
+        } else {
+            occupancy[row] |= 1L << column;
+        }
+
+        if (table[row] == null) {
+            table[row] = new int[cols];
+            Arrays.fill(table[row], EMPTY);
+        } else if (isShared(row)) {
+            table[row] = table[row].clone();
+            unshare(row);
+        }
+        table[row][column] = handle;
+    }
+
+    //______________________________________________________________________________________________
+    private boolean isShared(int row) {
+        return (shared[row >>> 6] & (1L << row)) != 0;
+    }
+
+    private void share(int row) {
+        shared[row >>> 6] |= 1L << row;
+    }
+
+    private void unshare(int row) {
+        shared[row >>> 6] &= ~(1L << row);
     }
 
     //______________________________________________________________________________________________
@@ -54,10 +125,9 @@ public class RoutingTable implements Cloneable{
     //	System.out.println("PEERSIM?LOCO");
       this.rows = rows;
       this.cols = cols;
-      table = new BigInteger[rows][cols];
-      for (int i = 0; i < rows; i++)
-          for (int j = 0; j < cols; j++)
-           table[i][j] = EMPTY;
+      table = new int[rows][];
+      occupancy = new long[rows];
+      shared = new long[(rows + 63) / 64];
     }
 
 
@@ -75,70 +145,102 @@ public class RoutingTable implements Cloneable{
      * @param nextChar char
      * @return long
      */
-    public BigInteger accessItem(int prefixlen, char nextChar) {
-        return table[prefixlen][ Util.charToIndex(nextChar)];
+    public UInt128 accessItem(int prefixlen, char nextChar) {
+        return get(prefixlen, Util.charToIndex(nextChar));
     }
 
     //______________________________________________________________________________________________
+    /**
+     * the rows are not copied, but shared (copy on write) between this table and the clone
+     */
     public Object clone() {
         RoutingTable dolly = new RoutingTable();
         dolly.rows = this.rows;
         dolly.cols = this.cols;
-        dolly.table = new BigInteger[rows][cols];
+        dolly.table = this.table.clone();
+        dolly.occupancy = this.occupancy.clone();
         for (int i = 0; i < this.rows; i++) {
-            //dolly.table[i] = new BigInteger[cols];
-            for (int j = 0; j < this.cols; j++)
-             dolly.table[i][j] = this.table[i][j];
+            if (this.table[i] != null)
+                this.share(i);
         }
+        dolly.shared = this.shared.clone();
         return dolly;
     }
 
     //______________________________________________________________________________________________
+    /**
+     * the row is shared (copy on write) with otherRT
+     */
     public void copyRowFrom(RoutingTable otherRT , int i) {
     	//System.out.println(" COPY ROWWWW"); 
-         for (int col = 0; col<cols;col++) {
-             this.table[i][col] = otherRT.table[i][col];
-         }
+        this.table[i] = otherRT.table[i];
+        this.occupancy[i] = otherRT.occupancy[i];
+        if (this.table[i] == null) {
+            this.unshare(i);
+            return;
+        }
+        this.share(i);
+        otherRT.share(i);
     }
 
     //______________________________________________________________________________________________
     /**
      * Given a non-null Node Id, it will be removed from the table.
      *
-     * @param b BigInteger node to remove from the routing table. if null is specified
+     * @param b UInt128 node to remove from the routing table. if null is specified
      * this method does nothing
      * @return boolean true is the node was in the table (and then correctly removed), false if
      * the node is not in the table. in both cases the node is removed from the table.
      */
-    public boolean  removeNodeId(BigInteger b) {
+    public boolean  removeNodeId(UInt128 b) {
     	//System.out.println(" REMOVEEEE"); 
-        if (b==null)
+        int h = NodeRegistry.handleOf(b);
+        if (h == EMPTY)
         	return false;
-        for (int i = 0; i < this.rows; i++)
-            for (int j = 0; j < this.cols; j++) {
-                if (b.equals(table[i][j])) 
-                	table[i][j] = null;
-                return true;
+        boolean found = false;
+        for (int i = 0; i < this.rows; i++) {
+            for (long bits = occupancy[i]; bits != 0; bits &= bits - 1) {
+                int j = Long.numberOfTrailingZeros(bits);
+                if (table[i][j] == h) {
+                	setHandle(i, j, EMPTY);
+                	found = true;
+                }
             }
-       return false;
+        }
+       return found;
+    }
+
+    //______________________________________________________________________________________________
+    /**
+     * estimated number of bytes used by this table (array headers included, the nodeIds are
+     * shared in the NodeRegistry and are not counted). A shared row is counted by every table
+     * referencing it.
+     * @return long
+     */
+    public long footprint() {
+        long bytes = (16 + 4L * rows) + (16 + 8L * rows) + (16 + 8L * shared.length);
+        for (int i = 0; i < rows; i++)
+            if (table[i] != null)
+                bytes += 16 + 4L * cols;
+        return bytes;
     }
 
     //______________________________________________________________________________________________
     /**
      * given a NodeId value, it returns an hexadecimal representation and truncate it
-     * on the 4th cipher, for instance truncateNodeId(new BigInteger(0xABCDEF0123)) returns "abcd-".
+     * on the 4th cipher, for instance truncateNodeId(new UInt128(0, 0xABCDEF0123L)) returns "abcd-".
      * This utility was thought only for debug purpose
-     * @param b BigInteger
+     * @param b UInt128
      * @return String
      */
-    public static final String truncateNodeId(BigInteger b) {
+    public static final String truncateNodeId(UInt128 b) {
         if (b == null)
             return "     ";
         return Util.put0(b).substring(0, 4) + "-";
     }
 
     //______________________________________________________________________________________________
-    public String toString(BigInteger nodeId) {
+    public String toString(UInt128 nodeId) {
         return "nodeId=" + truncateNodeId(nodeId) + "\n" + this.toString();
     }
 
@@ -157,7 +259,7 @@ public class RoutingTable implements Cloneable{
         for (int i = 0; i < 5; i++) {
             row = "row" + i + " ";
             for (int j = 0; j < cols; j++)
-                row = row + "[" + truncateNodeId(table[i][j]) + "]";
+                row = row + "[" + truncateNodeId(get(i, j)) + "]";
             result = result + row + "\n";
         }
         return result;
@@ -64,7 +64,7 @@ public class StateBuilder implements peersim.core.Control {
                 Node n2 = (Node) o2;
                 MSPastryProtocol p1 = (MSPastryProtocol) (n1.getProtocol(mspastryid));
                 MSPastryProtocol p2 = (MSPastryProtocol) (n2.getProtocol(mspastryid));
-                return Util.put0(p1.nodeId).compareTo(Util.put0(p2.nodeId));
+                return p1.nodeId.compareTo(p2.nodeId);
             }
             public boolean equals(Object obj) {
                 return compare(this, obj) == 0;
@@ -111,26 +111,24 @@ public class StateBuilder implements peersim.core.Control {
                     break;
                 }
 
-                char curChar = Util.DIGITS[i];
-
-                if (!Util.startsWith(get(begin).nodeId, curChar)) {
+                if (!Util.startsWith(get(begin).nodeId, i)) {
                     continue;
                 }
 
                 end = begin; //aggiunta successiva
 
-                while (((end < Network.size())) && (Util.startsWith(get(end).nodeId, curChar))) {
+                while (((end < Network.size())) && (Util.startsWith(get(end).nodeId, i))) {
                     end++;
                 }
 
                 int randomIndex = begin + CommonState.r.nextInt(end - begin);
 
                 //ROW 0 Assigned a random entry
-                node.routingTable.table[0][Util.charToIndex(curChar)] = get(randomIndex).nodeId;
+                node.routingTable.setHandle(0, i, NodeRegistry.handleOf(get(randomIndex).nodeId));
 
                 //ALmacena el indice de los representantes por char
-                //	rappresentanti[Util.charToIndex(curChar)] = randomIndex;
-                if (Util.hasDigitAt(node.nodeId, 0, curChar)) // llamar funcion que llene (nivel a llenar, comienzo, fin, nodo)
+                //	rappresentanti[i] = randomIndex;
+                if (Util.hasDigitAt(node.nodeId, 0, i)) // llamar funcion que llene (nivel a llenar, comienzo, fin, nodo)
                 {
                     fillLevel(1, begin, end, node);
                 }
@@ -160,13 +158,11 @@ public class StateBuilder implements peersim.core.Control {
                 break;
             }
 
-            char curChar = Util.DIGITS[i];
-
-            if (!Util.hasDigitAt(get(begin2).nodeId, curLevel, curChar)) {
+            if (!Util.hasDigitAt(get(begin2).nodeId, curLevel, i)) {
                 continue;
             }
 
-            while (((end2 < end)) && (Util.hasDigitAt(get(end2).nodeId, curLevel, curChar))) {
+            while (((end2 < end)) && (Util.hasDigitAt(get(end2).nodeId, curLevel, i))) {
                 end2++;
             }
 
@@ -177,9 +173,9 @@ public class StateBuilder implements peersim.core.Control {
             int randomIndex = begin2 + CommonState.r.nextInt(end2 - begin2);
 
             //ROW 0 Assigned a random entry
-            node.routingTable.table[curLevel][Util.charToIndex(curChar)] = get(randomIndex).nodeId;
+            node.routingTable.setHandle(curLevel, i, NodeRegistry.handleOf(get(randomIndex).nodeId));
 
-            if (Util.hasDigitAt(node.nodeId, curLevel, curChar)) // llamar funcion que llene (nivel a llenar, comienzo, fin, nodo)
+            if (Util.hasDigitAt(node.nodeId, curLevel, i)) // llamar funcion que llene (nivel a llenar, comienzo, fin, nodo)
             {
                 fillLevel(curLevel + 1, begin2, end2, node);
             }
@@ -197,12 +193,9 @@ public class StateBuilder implements peersim.core.Control {
             MSPastryProtocol n = get(k);
             for (int s = k - 1; s >= 0; s--) {
                 n.leafSet.pushToLeft(get(s).nodeId);
-                n.leafSet.putNodeLeft(getNode(s));
             }
             for (int s = sz - 1; s >= sz - MSPastryCommonConfig.L / 2 + k; s--) {
                 n.leafSet.pushToLeft(get(s).nodeId);
-                //System.out.println("NODO: " +  n.leafSet.nodesL.toString());
-                n.leafSet.putNodeLeft(getNode(s));
             }
         }
 
@@ -211,11 +204,9 @@ public class StateBuilder implements peersim.core.Control {
             MSPastryProtocol n = get(k);
             for (int s = k + 1; s < sz; s++) {
                 n.leafSet.pushToRight(get(s).nodeId);
-                n.leafSet.putNodeRight(getNode(s));
             }
             for (int s = 0; s <= MSPastryCommonConfig.L / 2 - (sz - k); s++) {
                 n.leafSet.pushToRight(get(s).nodeId);
-                n.leafSet.putNodeRight(getNode(s));
             }
         }
 
@@ -225,7 +216,6 @@ public class StateBuilder implements peersim.core.Control {
 
             for (int s = k; s <= k + MSPastryCommonConfig.L / 2; s++) {
                 n.leafSet.pushToRight(get(s).nodeId);
-                n.leafSet.putNodeRight(getNode(s));
             }
         }
 
@@ -237,7 +227,6 @@ public class StateBuilder implements peersim.core.Control {
             for (int s = k - 1; s > k - 1 - MSPastryCommonConfig.L / 2; s--) {
 
                 n.leafSet.pushToLeft(get(s).nodeId);
-                n.leafSet.putNodeLeft(getNode(s));
             }
         }
 
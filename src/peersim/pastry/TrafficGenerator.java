@@ -3,7 +3,6 @@ package peersim.pastry;
 import peersim.core.*;
 import peersim.config.Configuration;
 import peersim.edsim.EDSimulator;
-import java.math.*;
 
 /**
  * This "test" control generates random traffic between random nodes (source and destination).
@@ -53,10 +52,11 @@ public class TrafficGenerator implements Control {
             m.timestamp = CommonState.getTime();
 
             if (CommonState.r.nextInt(100) < 100)
-                m.dest = new BigInteger(MSPastryCommonConfig.BITS, CommonState.r);
+                m.dest = new UniformRandomGenerator(MSPastryCommonConfig.BITS, CommonState.r).generate();
              else
                 m.dest = ((MSPastryProtocol) (Network.get(CommonState.r.nextInt(
                         Network.size())).getProtocol(pid))).nodeId;
+            m.key = m.dest;
 
             return m;
 
@@ -1,6 +1,5 @@
 package peersim.pastry;
 
-import java.math.BigInteger;
 import java.util.*;
 
 import peersim.config.*;
@@ -168,8 +167,7 @@ public class Turbulence implements Control {
                 Node n2 = (Node) o2;
                 MSPastryProtocol p1 = (MSPastryProtocol) (n1.getProtocol(mspastryid));
                 MSPastryProtocol p2 = (MSPastryProtocol) (n2.getProtocol(mspastryid));
-                return Util.put0(p1.nodeId).compareTo(Util.put0(p2.nodeId));
-                // return p1.nodeId.compareTo(p2.nodeId);
+                return p1.nodeId.compareTo(p2.nodeId);
             }
             //______________________________________________________________________________________
             public boolean equals(Object obj) {
@@ -190,6 +188,9 @@ public class Turbulence implements Control {
 
 
        Network.get(randomIndex).setFailState(Node.DOWN);
+       NodeRegistry.unregister(get(randomIndex).nodeId);
+       if (get(randomIndex).getApp() != null)
+          get(randomIndex).getApp().releaseChunkStore();
       // System.out.println("NODO REMOVED: " + RoutingTable.truncateNodeId( ((MSPastryProtocol)Network.get(randomIndex).getProtocol(3)).nodeId));
     }
 
@@ -245,6 +246,7 @@ public class Turbulence implements Control {
        UniformRandomGenerator urg = new UniformRandomGenerator(MSPastryCommonConfig.BITS, CommonState.r);
        MSPastryProtocol newNode = get(index);
        newNode.setNodeId(urg.generate());
+       NodeRegistry.register(newNode.nodeId, Network.get(index));
        //System.out.println("ADDING: "+ RoutingTable.truncateNodeId(newNode.nodeId));
 
        sortNet();
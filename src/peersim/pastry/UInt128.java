@@ -0,0 +1,216 @@
+package peersim.pastry;
+
+import java.math.BigInteger;
+
+//__________________________________________________________________________________________________
+/**
+ * Immutable unsigned 128-bit number, used as nodeId and as message key all over the overlay.
+ * It is stored as two longs (the most and the least significant 64 bits), so comparisons,
+ * distances and digit extraction never allocate, as opposed to BigInteger.
+ */
+public final class UInt128 implements Comparable<UInt128> {
+
+    //______________________________________________________________________________________________
+    public static final UInt128 ZERO = new UInt128(0L, 0L);
+    public static final UInt128 MAX = new UInt128(-1L, -1L);
+
+    /**
+     * most significant 64 bits
+     */
+    public final long hi;
+
+    /**
+     * least significant 64 bits
+     */
+    public final long lo;
+
+    //______________________________________________________________________________________________
+    public UInt128(long hi, long lo) {
+        this.hi = hi;
+        this.lo = lo;
+    }
+
+    //______________________________________________________________________________________________
+    /**
+     * builds a number from (at most) 16 big-endian bytes, as produced by a digest or by
+     * Random.nextBytes(). Shorter arrays are right aligned (leading zeroes).
+     * @param b byte[]
+     * @return UInt128
+     */
+    public static UInt128 fromBytes(byte[] b) {
+        long h = 0, l = 0;
+        int n = b.length;
+        int from = n > 16 ? n - 16 : 0;
+        for (int i = from; i < n; i++) {
+            h = (h << 8) | (l >>> 56);
+            l = (l << 8) | (b[i] & 0xffL);
+        }
+        return new UInt128(h, l);
+    }
+
+    //______________________________________________________________________________________________
+    /**
+     * converts a non-negative BigInteger (only its lower 128 bits are considered)
+     * @param b BigInteger
+     * @return UInt128
+     */
+    public static UInt128 valueOf(BigInteger b) {
+        if (b == null)
+            return null;
+        return new UInt128(b.shiftRight(64).longValue(), b.longValue());
+    }
+
+    //______________________________________________________________________________________________
+    public static UInt128 valueOf(long l) {
+        return new UInt128(0L, l);
+    }
+
+    //______________________________________________________________________________________________
+    public BigInteger toBigInteger() {
+        BigInteger h = BigInteger.valueOf(hi >>> 32).shiftLeft(32).or(BigInteger.valueOf(hi & 0xffffffffL));
+        BigInteger l = BigInteger.valueOf(lo >>> 32).shiftLeft(32).or(BigInteger.valueOf(lo & 0xffffffffL));
+        return h.shiftLeft(64).or(l);
+    }
+
+    //______________________________________________________________________________________________
+    /**
+     * unsigned comparison
+     * @param o UInt128
+     * @return int
+     */
+    public int compareTo(UInt128 o) {
+        return compare(hi, lo, o.hi, o.lo);
+    }
+
+    //______________________________________________________________________________________________
+    /**
+     * unsigned comparison of two numbers given by their (hi,lo) halves
+     */
+    public static int compare(long h1, long l1, long h2, long l2) {
+        if (h1 != h2)
+            return Long.compareUnsigned(h1, h2);
+        return Long.compareUnsigned(l1, l2);
+    }
+
+    //______________________________________________________________________________________________
+    /**
+     * this - o, modulo 2^128
+     * @param o UInt128
+     * @return UInt128
+     */
+    public UInt128 subtract(UInt128 o) {
+        long l = lo - o.lo;
+        long h = hi - o.hi - (Long.compareUnsigned(lo, o.lo) < 0 ? 1 : 0);
+        return new UInt128(h, l);
+    }
+
+    //______________________________________________________________________________________________
+    /**
+     * number of leading zero bits (128 for zero)
+     * @return int
+     */
+    public int numberOfLeadingZeros() {
+        return hi != 0 ? Long.numberOfLeadingZeros(hi) : 64 + Long.numberOfLeadingZeros(lo);
+    }
+
+    //______________________________________________________________________________________________
+    /**
+     * extracts the "width" bits starting from bit position "shift" (0 = least significant)
+     * @param shift int
+     * @param width int, at most 31
+     * @return int
+     */
+    public int bits(int shift, int width) {
+        long v;
+        if (shift >= 64)
+            v = hi >>> (shift - 64);
+        else if (shift == 0)
+            v = lo;
+        else
+            v = (lo >>> shift) | (hi << (64 - shift));
+        return (int) (v & ((1L << width) - 1));
+    }
+
+    //______________________________________________________________________________________________
+    /**
+     * compare the distances of a and b from k measured along the ring of 2^128 identifiers, i.e.
+     * min(|k-x|, 2^128-|k-x|)
+     * @return int negative if a is nearer to k than b, 0 if same distance, positive otherwise
+     */
+    public static int compareRingDistance(UInt128 k, UInt128 a, UInt128 b) {
+        // (a-k) mod 2^128, then folded on the shorter side
+        long al = a.lo - k.lo;
+        long ah = a.hi - k.hi - (Long.compareUnsigned(a.lo, k.lo) < 0 ? 1 : 0);
+        if (ah < 0) {
+            al = -al;
+            ah = ~ah + (al == 0 ? 1 : 0);
+        }
+        long bl = b.lo - k.lo;
+        long bh = b.hi - k.hi - (Long.compareUnsigned(b.lo, k.lo) < 0 ? 1 : 0);
+        if (bh < 0) {
+            bl = -bl;
+            bh = ~bh + (bl == 0 ? 1 : 0);
+        }
+        return compare(ah, al, bh, bl);
+    }
+
+    //______________________________________________________________________________________________
+    /**
+     * distance along the ring of 2^128 identifiers: min(|this-o|, 2^128-|this-o|)
+     * @param o UInt128
+     * @return UInt128
+     */
+    public UInt128 ringDistance(UInt128 o) {
+        UInt128 d = o.subtract(this);
+        return d.hi < 0 ? ZERO.subtract(d) : d;
+    }
+
+    //______________________________________________________________________________________________
+    /**
+     * representation in the given radix, without leading zeroes
+     * @param radix int
+     * @return String
+     */
+    public String toString(int radix) {
+        if (radix == 16) {
+            if (hi == 0)
+                return Long.toHexString(lo);
+            String l = Long.toHexString(lo);
+            StringBuilder sb = new StringBuilder(32).append(Long.toHexString(hi));
+            for (int i = l.length(); i < 16; i++)
+                sb.append('0');
+            return sb.append(l).toString();
+        }
+        return toBigInteger().toString(radix);
+    }
+
+    //______________________________________________________________________________________________
+    /**
+     * decimal representation, the same one BigInteger gives
+     * @return String
+     */
+    public String toString() {
+        if (hi == 0 && lo >= 0)
+            return Long.toString(lo);
+        return toBigInteger().toString();
+    }
+
+    //______________________________________________________________________________________________
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (!(o instanceof UInt128))
+            return false;
+        UInt128 u = (UInt128) o;
+        return hi == u.hi && lo == u.lo;
+    }
+
+    //______________________________________________________________________________________________
+    public int hashCode() {
+        long h = hi * 0x9E3779B97F4A7C15L ^ lo;
+        return (int) (h ^ (h >>> 32));
+    }
+    //______________________________________________________________________________________________
+
+} // End of class
+//______________________________________________________________________________________________
@@ -1,6 +1,5 @@
 package peersim.pastry;
 
-import java.math.BigInteger;
 import java.util.Random;
 
 //_________________________________________________________________________________________________
@@ -28,8 +27,13 @@ public final class UniformRandomGenerator {
 
 
     //______________________________________________________________________________________________
-    private final BigInteger nextRand() {
-        return new BigInteger(bits, rnd);
+    private final UInt128 nextRand() {
+        // same bytes consumed (and same value returned) as new BigInteger(bits, rnd)
+        byte[] b = new byte[(bits + 7) / 8];
+        rnd.nextBytes(b);
+        int excess = 8 * b.length - bits;
+        b[0] &= (byte) ((1 << (8 - excess)) - 1);
+        return UInt128.fromBytes(b);
     }
 
 
@@ -61,9 +65,9 @@ public final class UniformRandomGenerator {
      * Returns a unique 128-bit random number.
      * The number is also put into an internal store to check it will be never
      * returned again
-     * @return BigInteger
+     * @return UInt128
      */
-    public final BigInteger generate() {
+    public final UInt128 generate() {
         return nextRand();
     }
     //______________________________________________________________________________________________
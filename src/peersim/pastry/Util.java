@@ -1,7 +1,5 @@
 package peersim.pastry;
 
-import java.math.BigInteger;
-
 //__________________________________________________________________________________________________
 /**
  *  Some utility and mathematical function to work with numbers and strings.
@@ -22,74 +20,109 @@ public class Util {
     /**
      * Given two numbers, returns the length of the common prefix, i.e. how
      * many digits (in the given base) have in common from the leftmost side of
-     * the number
-     * @param b1 BigInteger
-     * @param b2 BigInteger
+     * the number. It is computed on the bits (xor + leading zeroes), the most significant digit
+     * being narrower than B bits when B does not divide BITS.
+     * @param b1 UInt128
+     * @param b2 UInt128
      * @return int
      */
-    public static final int prefixLen(BigInteger b1, BigInteger b2) {
-
-        String s1 = Util.put0(b1);
-        String s2 = Util.put0(b2);
+    public static final int prefixLen(UInt128 b1, UInt128 b2) {
+        int clz;
+        if (b1.hi != b2.hi)
+            clz = Long.numberOfLeadingZeros(b1.hi ^ b2.hi);
+        else
+            clz = 64 + Long.numberOfLeadingZeros(b1.lo ^ b2.lo);
+
+        int top = MSPastryCommonConfig.BITS - (MSPastryCommonConfig.DIGITS - 1) * MSPastryCommonConfig.B;
+        if (clz < top)
+            return 0;
+        return min(1 + (clz - top) / MSPastryCommonConfig.B, MSPastryCommonConfig.DIGITS);
+    }
 
-        int i = 0;
-        for(i = 0; i < s1.length(); i++) {
-          if (s1.charAt(i)!=s2.charAt(i))
-              return i;
-        }
+    //______________________________________________________________________________________________
+    /**
+     * returns the digit (in the current BASE) of b at the specified position, 0 being the
+     * leftmost digit of the normalized representation, i.e. the same value of
+     * charToIndex(put0(b).charAt(position)), without building any string.
+     * @param b UInt128
+     * @param position int
+     * @return int
+     */
+    public static final int digitAt(UInt128 b, int position) {
+        return b.bits((MSPastryCommonConfig.DIGITS - 1 - position) * MSPastryCommonConfig.B,
+                      MSPastryCommonConfig.B);
+    }
 
-        return i;
+    //______________________________________________________________________________________________
+    /**
+     * return true if b (normalized) starts with the digit d
+     * @param b UInt128
+     * @param d int
+     * @return boolean
+     */
+    public static final boolean startsWith(UInt128 b, int d) {
+       return digitAt(b, 0) == d;
     }
 
     //______________________________________________________________________________________________
     /**
      * return true if b (normalized) starts with c
-     * @param b BigInteger
+     * @param b UInt128
      * @param c char
      * @return boolean
      */
-    public static final boolean startsWith(BigInteger b, char c) {
-       String s1 = put0(b);
-       return (s1.charAt(0) == c);
+    public static final boolean startsWith(UInt128 b, char c) {
+       return startsWith(b, charToIndex(c));
     }
 
     //______________________________________________________________________________________________
     /**
-     * return the distance between two number, that is |a-b|.
+     * return the distance between two number along the ring, that is min(|a-b|, 2^128-|a-b|).
      * no checking is done.
-     * @param a BigInteger
-     * @param b BigInteger
-     * @return BigInteger
+     * @param a UInt128
+     * @param b UInt128
+     * @return UInt128
      */
-    public static final BigInteger distance(BigInteger a, BigInteger b) {
-    return a.subtract(b).abs();
+    public static final UInt128 distance(UInt128 a, UInt128 b) {
+    return a.ringDistance(b);
     }
 
     //______________________________________________________________________________________________
     /**
      * given a point (center), returns true if the second parameter (near) has less distance from
      * the center respect with the 3rd point (far)
-     * @param center BigInteger
-     * @param near BigInteger
-     * @param far BigInteger
+     * @param center UInt128
+     * @param near UInt128
+     * @param far UInt128
      * @return boolean
      */
-    public static final boolean nearer(BigInteger center, BigInteger near, BigInteger far) {
-     return  distance(center,near).compareTo(  distance(center,far) ) < 0;
+    public static final boolean nearer(UInt128 center, UInt128 near, UInt128 far) {
+     return UInt128.compareRingDistance(center, near, far) < 0;
     }
 
 
     //______________________________________________________________________________________________
     /**
      * Given b, normalize it and check if char c is at specified position
-     * @param b BigInteger
+     * @param b UInt128
      * @param position int
      * @param c char
      * @return boolean
      */
-    public static final boolean hasDigitAt(BigInteger b, int position, char c) {
-       String s1 = Util.put0(b);
-       return (s1.charAt(position)==c);
+    public static final boolean hasDigitAt(UInt128 b, int position, char c) {
+       return hasDigitAt(b, position, charToIndex(c));
+    }
+
+    //______________________________________________________________________________________________
+    /**
+     * check if digit d is at specified position of b
+     * @param b UInt128
+     * @param position int
+     * @param d int
+     * @return boolean
+     */
+    public static final boolean hasDigitAt(UInt128 b, int position, int d) {
+       return digitAt(b, position) == d;
     }
 
     //______________________________________________________________________________________________
@@ -117,15 +150,15 @@ public class Util {
 
     //______________________________________________________________________________________________
     /**
-     * convert a BigInteger into a String, by considering the current BASE, and by leading all
+     * convert a UInt128 into a String, by considering the current BASE, and by leading all
      * needed non-significative zeroes in order to reach the canonical length of a nodeid
-     * @param b BigInteger
+     * @param b UInt128
      * @return String
      */
-    public static final String put0(BigInteger b) {
+    public static final String put0(UInt128 b) {
         if (b==null) 
         	return null;
-      String s = b.toString(MSPastryCommonConfig.BASE).toLowerCase();
+      String s = b.toString(MSPastryCommonConfig.BASE);
       while (s.length() < MSPastryCommonConfig.DIGITS ) 
     	  s = "0" + s;
       return s;
@@ -1,58 +1,268 @@
 package peersim.utils;
 
-import java.io.BufferedInputStream;
+import java.io.Closeable;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.util.*;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
 
-public class FileSplit {
-    private List<byte[]> listBytes;
-    public FileSplit(String filePath) {
-        listBytes = splitFile(new File(filePath));
+/*
+    Particiona un archivo en trozos de chunkSize bytes (el ultimo puede ser
+    mas corto) leyendolo de a un trozo por vez desde un FileChannel: cada
+    next() lee el trozo siguiente en un buffer nuevo de su largo exacto, asi
+    nunca se tiene el archivo completo en memoria y los trozos no comparten
+    el arreglo. El canal se cierra al leer el ultimo trozo o con close().
+
+    En modo mmap el archivo se mapea (de a regiones de a lo más MAX_REGION
+    bytes) y cada next() devuelve un slice de solo lectura del mapeo, sin
+    copiar ni pedir memoria: los bytes se copian una sola vez, cuando el
+    trozo se escribe en el ChunkStore del nodo destino. El mapeo se libera
+    cuando el GC recolecta el ultimo slice.
+
+    Con el constructor de min/avg/max los cortes dependen del contenido
+    (content-defined chunking, como FastCDC): un hash Gear recorre los bytes
+    y se corta donde sus bits altos son 0, nunca antes de min ni despues de
+    max bytes. Hasta avg bytes se exige un bit mas (cortes menos probables) y
+    despues uno menos, asi los largos se concentran cerca de avg. Como el
+    hash solo depende de los ultimos 64 bytes, insertar o quitar bytes en un
+    archivo solo cambia los trozos vecinos al cambio, y el mismo contenido
+    en otro archivo produce los mismos trozos.
+*/
+public class FileSplit implements Iterator<ByteBuffer>, Closeable {
+
+    public static final int CHUNK_SIZE = 128*1000;// 128*1KByte
+    private static final long MAX_REGION = 1L << 30;
+
+    //valores aleatorios (fijos) de cada byte para el hash Gear
+    private static final long[] GEAR = new long[256];
+
+    static {
+        long x = 0x9E3779B97F4A7C15L;
+        for (int i = 0; i < GEAR.length; i++) {
+            //splitmix64
+            long z = (x += 0x9E3779B97F4A7C15L);
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            GEAR[i] = z ^ (z >>> 31);
+        }
+    }
+
+    private final FileChannel channel;
+    private final int chunkSize;
+    private final long size;
+    private final boolean mmap;
+    //region mapeada actual (modo mmap) y su offset en el archivo
+    private MappedByteBuffer region;
+    private long regionStart;
+    //content-defined chunking: largos minimo, promedio y maximo, y bits del corte
+    private final boolean cdc;
+    private final int min, avg, max, bits;
+    //bytes leidos despues de position (modo cdc sin mmap)
+    private ByteBuffer pending;
+    private long position = 0;
+
+    public FileSplit(String filePath) throws IOException {
+        this(filePath, CHUNK_SIZE);
+    }
+
+    public FileSplit(String filePath, int chunkSize) throws IOException {
+        this(filePath, chunkSize, false);
+    }
+
+    /*
+        mmap: si es true los trozos son slices del archivo mapeado en memoria
+    */
+    public FileSplit(String filePath, int chunkSize, boolean mmap) throws IOException {
+        this(filePath, chunkSize, false, 0, 0, 0, mmap);
     }
 
-    public byte[] getChunk(int i){
-        return listBytes.get(i);
+    /*
+        Trozos definidos por contenido de entre min y max bytes, avg en promedio
+    */
+    public FileSplit(String filePath, int min, int avg, int max, boolean mmap) throws IOException {
+        this(filePath, max, true, min, avg, max, mmap);
+        if (min < 1 || min >= avg || avg >= max || max > MAX_REGION) {
+            close();
+            throw new IllegalArgumentException("chunk sizes must satisfy 0 < min < avg < max");
+        }
+    }
+
+    private FileSplit(String filePath, int chunkSize, boolean cdc, int min, int avg, int max, boolean mmap) throws IOException {
+        this.channel = FileChannel.open(new File(filePath).toPath(), StandardOpenOption.READ);
+        this.chunkSize = chunkSize;
+        this.mmap = mmap;
+        this.cdc = cdc;
+        this.min = min;
+        this.avg = avg;
+        this.max = max;
+        this.bits = cdc ? 31 - Integer.numberOfLeadingZeros(Math.max(avg - min, 2)) : 0;
+        this.size = channel.size();
+        if (size == 0) {
+            channel.close();
+        }
     }
-    
+
+    /*
+        Número total de trozos del archivo. Con cortes por contenido es solo
+        una estimacion (largo / promedio): el número real se conoce al
+        terminar de recorrer el archivo con next().
+    */
     public int sizeListChunk(){
-        return listBytes.size();
-    }
-    
-    public List<byte[]> splitFile(File f){
-        int sizeOfFiles = 128*1000;// 128*1KByte
-        byte[] buffer = new byte[sizeOfFiles];
-        List<byte[]> file = new ArrayList<>();
-        try (BufferedInputStream bis = new BufferedInputStream(new FileInputStream(f))) {
-            int tmp = 0;
-            while ((tmp = bis.read(buffer)) > 0) {
-                file.add(buffer);
+        if (cdc) {
+            return (int) ((size + avg - 1) / avg);
+        }
+        return (int) ((size + chunkSize - 1) / chunkSize);
+    }
+
+    @Override
+    public boolean hasNext() {
+        return position < size;
+    }
+
+    /*
+        Lee el trozo siguiente. Un error de lectura se informa como
+        UncheckedIOException (Iterator no permite excepciones).
+    */
+    @Override
+    public ByteBuffer next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        int length = (int) Math.min(chunkSize, size - position);
+        if (cdc) {
+            return mmap ? nextSlice(cut(mapped(length), (int) (position - regionStart), length)) : nextCut(length);
+        }
+        if (mmap) {
+            return nextSlice(length);
+        }
+        ByteBuffer chunk = ByteBuffer.allocate(length);
+        try {
+            while (chunk.hasRemaining()) {
+                int r = channel.read(chunk, position + chunk.position());
+                if (r < 0) {
+                    throw new IOException("file shrunk while splitting it");
+                }
             }
-        } catch (FileNotFoundException ex) {
-            ex.printStackTrace();
         } catch (IOException ex) {
-            ex.printStackTrace();
+            close();
+            throw new UncheckedIOException(ex);
+        }
+        chunk.flip();
+        position += chunk.remaining();
+        if (!hasNext()) {
+            close();
+        }
+        return chunk;
+    }
+
+    /*
+        Deja mapeada una region que contiene [position, position+length) y la devuelve
+    */
+    private MappedByteBuffer mapped(int length) {
+        if (region == null || position + length > regionStart + region.capacity()) {
+            //la region empieza en el trozo y contiene un número entero de trozos
+            long max = Math.max(chunkSize, MAX_REGION - MAX_REGION % chunkSize);
+            try {
+                region = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(max, size - position));
+            } catch (IOException ex) {
+                close();
+                throw new UncheckedIOException(ex);
+            }
+            regionStart = position;
+        }
+        return region;
+    }
+
+    private ByteBuffer nextSlice(int length) {
+        ByteBuffer chunk = mapped(length).duplicate();
+        chunk.position((int) (position - regionStart));
+        chunk.limit(chunk.position() + length);
+        position += length;
+        if (!hasNext()) {
+            close();
+        }
+        return chunk.slice().asReadOnlyBuffer();
+    }
+
+    /*
+        Siguiente trozo definido por contenido leyendo del canal: se leen
+        hasta n bytes despues de position (los que sobran del corte anterior
+        se conservan en pending) y se copia el trozo a un buffer de su largo.
+    */
+    private ByteBuffer nextCut(int n) {
+        if (pending == null) {
+            pending = ByteBuffer.allocate(max);
+            pending.flip();
         }
-        return file;
+        try {
+            long pos = position + pending.remaining();
+            pending.compact();
+            while (pending.position() < n) {
+                int r = channel.read(pending, pos);
+                if (r < 0) {
+                    throw new IOException("file shrunk while splitting it");
+                }
+                pos += r;
+            }
+        } catch (IOException ex) {
+            close();
+            throw new UncheckedIOException(ex);
+        }
+        pending.flip();
+        int length = cut(pending, 0, n);
+        ByteBuffer chunk = ByteBuffer.allocate(length);
+        ByteBuffer src = pending.duplicate();
+        src.limit(length);
+        chunk.put(src);
+        chunk.flip();
+        pending.position(length);
+        position += length;
+        if (!hasNext()) {
+            close();
+        }
+        return chunk;
     }
-    
-    public byte[] joinFile(List<byte[]> chunks){
-        int sizeFile = 0;
-        for(int i=0;i<chunks.size();i++){
-            sizeFile += chunks.get(i).length;
+
+    /*
+        Largo del trozo que empieza en b[from], con n bytes disponibles
+        (n < max solo al final del archivo)
+    */
+    private int cut(ByteBuffer b, int from, int n) {
+        if (n <= min) {
+            return n;
+        }
+        long hash = 0;
+        int i = min;
+        int normal = Math.min(avg, n);
+        for (; i < normal; i++) {
+            hash = (hash << 1) + GEAR[b.get(from + i) & 0xff];
+            if (hash >>> (63 - bits) == 0) {
+                return i + 1;
+            }
         }
-        System.out.println(sizeFile);
-        
-        byte[] file = new byte[sizeFile];
-        int inicio = 0;
-        int fin = 0;
-        for(byte[] archivo : chunks){
-            System.arraycopy(archivo, 0, file, inicio, archivo.length);
-            inicio += archivo.length;
+        for (; i < n; i++) {
+            hash = (hash << 1) + GEAR[b.get(from + i) & 0xff];
+            if (hash >>> (65 - bits) == 0) {
+                return i + 1;
+            }
+        }
+        return n;
+    }
+
+    @Override
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException ex) {
+            ex.printStackTrace();
         }
-        System.out.println(file.length);
-        return file;
+        position = size;
+        region = null;
+        pending = null;
     }
-}
\ No newline at end of file
+}
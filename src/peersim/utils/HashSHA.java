@@ -1,9 +1,10 @@
 package peersim.utils;
 
 import java.io.UnsupportedEncodingException;
-import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import peersim.pastry.UInt128;
 
 public class HashSHA {
 
@@ -16,7 +17,6 @@ public class HashSHA {
      */
     private static MessageDigest md;
     private static byte[] buffer, digest;
-    private static String hash = "";
 
     /**
      * Makes a Hash to route a prefix over DHT
@@ -25,8 +25,7 @@ public class HashSHA {
      * @param prefix
      * @return
      */
-    public static BigInteger applyHash(double input) {
-        hash = "";
+    public static UInt128 applyHash(double input) {
         buffer = Double.toString(input).getBytes();
 
         try {
@@ -38,21 +37,10 @@ public class HashSHA {
         md.update(buffer);
         digest = md.digest();
 
-        for (byte aux : digest) {
-            int b = aux & 0xff;
-            if (Integer.toHexString(b).length() == 1) {
-                hash += "0";
-            }
-            hash += Integer.toHexString(b);
-        }
-        BigInteger bi = new BigInteger(hash, 16);
-        //BigInteger bi = new BigInteger(digest);
-
-        return bi;
+        return UInt128.fromBytes(digest);
     }
 
-    public static BigInteger applyHash(String input) throws UnsupportedEncodingException {
-        hash = "";
+    public static UInt128 applyHash(String input) throws UnsupportedEncodingException {
         buffer = input.getBytes();
 
         try {
@@ -64,16 +52,27 @@ public class HashSHA {
         md.update(buffer);
         digest = md.digest();
 
-        for (byte aux : digest) {
-            int b = aux & 0xff;
-            if (Integer.toHexString(b).length() == 1) {
-                hash += "0";
-            }
-            hash += Integer.toHexString(b);
+        return UInt128.fromBytes(digest);
+    }
+
+    /**
+     * Makes a Hash of the bytes remaining in a buffer (the content key of a
+     * chunk), without changing the buffer position
+     *
+     * @param content
+     * @return
+     */
+    public static UInt128 applyHash(ByteBuffer content) {
+        try {
+            md = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            e.printStackTrace();
         }
 
-        BigInteger bi = new BigInteger(hash, 16);
-        return bi;
+        md.update(content.duplicate());
+        digest = md.digest();
+
+        return UInt128.fromBytes(digest);
     }
 
 }